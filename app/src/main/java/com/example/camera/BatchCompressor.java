@@ -0,0 +1,222 @@
+package com.example.camera;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses a batch of existing images across a worker pool.
+ * <p>
+ * Every image goes through the same {@link CompressionPipeline} as the single-image path. The
+ * pool is sized from the available cores and from how many per-job memory budgets fit in half
+ * the heap, so concurrent decodes cannot run the process out of memory.
+ */
+public class BatchCompressor {
+
+    private static final String TAG = "BatchCompressor";
+
+    /**
+     * Receives the results of a batch. All methods are called on worker threads.
+     */
+    public interface Listener {
+        /**
+         * Called for every compressed image. The output should be stored before returning, its
+         * buffer goes back to the pool afterwards.
+         */
+        void onImageCompressed(Uri source, ImageCompressor.Result result) throws IOException;
+
+        void onProgress(int completed, int failed, int total);
+
+        void onFinished(Summary summary);
+    }
+
+    /**
+     * Totals for a finished batch.
+     */
+    public static class Summary {
+        private final int total;
+        private final int succeeded;
+        private final int failed;
+        private final boolean cancelled;
+        private final long elapsedMs;
+        private final long bytesIn;
+        private final long bytesOut;
+
+        Summary(int total, int succeeded, int failed, boolean cancelled, long elapsedMs, long bytesIn, long bytesOut) {
+            this.total = total;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.cancelled = cancelled;
+            this.elapsedMs = elapsedMs;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public double getImagesPerSecond() {
+            return elapsedMs > 0 ? succeeded * 1000.0 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d/%d images%s, %d failed\n%.1f s, %.2f images/s\nIn: %d KB, out: %d KB",
+                    succeeded, total, cancelled ? " (cancelled)" : "", failed,
+                    elapsedMs / 1000.0, getImagesPerSecond(), bytesIn / 1024, bytesOut / 1024);
+        }
+    }
+
+    private final ContentResolver contentResolver;
+    private final CompressionPipeline compressionPipeline;
+    private final int poolSize;
+
+    private volatile boolean cancelled;
+    private ExecutorService workers;
+
+    public BatchCompressor(ContentResolver contentResolver, CompressionPipeline compressionPipeline) {
+        this.contentResolver = contentResolver;
+        this.compressionPipeline = compressionPipeline;
+        this.poolSize = poolSize(compressionPipeline.getMaxJobBytes());
+    }
+
+    /**
+     * @param perJobBytes The peak memory of a single job.
+     * @return The number of jobs that can run at once without exceeding half the heap.
+     */
+    static int poolSize(long perJobBytes) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long byMemory = Math.max(1, getMemoryBudget() / Math.max(1, perJobBytes));
+        return (int) Math.max(1, Math.min(cores, byMemory));
+    }
+
+    /**
+     * @return The memory compression work may take up: half the heap.
+     */
+    static long getMemoryBudget() {
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Starts compressing the images. Only one batch can run at a time.
+     *
+     * @param sources  The images to compress.
+     * @param listener Receives the outputs, progress and the final summary.
+     */
+    public synchronized void start(List<Uri> sources, Listener listener) {
+        if (workers != null) {
+            throw new IllegalStateException("A batch is already running");
+        }
+        cancelled = false;
+        if (sources.isEmpty()) {
+            listener.onFinished(new Summary(0, 0, 0, false, 0, 0, 0));
+            return;
+        }
+        workers = Executors.newFixedThreadPool(poolSize, new CameraThreads.NamedThreadFactory("BatchCompressor"));
+        Log.d(TAG, "Compressing " + sources.size() + " images on " + poolSize + " workers");
+
+        final int total = sources.size();
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+
+        for (Uri source : sources) {
+            workers.execute(() -> {
+                // Jobs still queued when the batch is cancelled only count themselves off
+                if (!cancelled) {
+                    try {
+                        bytesIn.addAndGet(sizeOf(source));
+                        ImageCompressor.Result result = compress(source);
+                        try {
+                            listener.onImageCompressed(source, result);
+                        } finally {
+                            result.release();
+                        }
+                        bytesOut.addAndGet(result.getSize());
+                        succeeded.incrementAndGet();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error compressing " + source, e);
+                        failed.incrementAndGet();
+                    }
+                    listener.onProgress(succeeded.get(), failed.get(), total);
+                }
+
+                if (finished.incrementAndGet() == total) {
+                    finish(listener, new Summary(total, succeeded.get(), failed.get(), cancelled,
+                            SystemClock.elapsedRealtime() - startTimeMs, bytesIn.get(), bytesOut.get()));
+                }
+            });
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Stops the batch between images. Images already being compressed are finished.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void finish(Listener listener, Summary summary) {
+        synchronized (this) {
+            workers = null;
+        }
+        Log.d(TAG, "Batch finished: " + summary);
+        listener.onFinished(summary);
+    }
+
+    private ImageCompressor.Result compress(Uri source) throws IOException {
+        return compressionPipeline.compress(SampledBitmapDecoder.fromStream(() -> contentResolver.openInputStream(source))).getResult();
+    }
+
+    private long sizeOf(Uri source) {
+        try (AssetFileDescriptor descriptor = contentResolver.openAssetFileDescriptor(source, "r")) {
+            return descriptor != null ? Math.max(0, descriptor.getLength()) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
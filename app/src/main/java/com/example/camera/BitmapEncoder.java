@@ -0,0 +1,70 @@
+package com.example.camera;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes an Android bitmap with {@link Bitmap#compress}, in any of the platform formats.
+ */
+public class BitmapEncoder implements ImageEncoder {
+
+    private final Bitmap bitmap;
+    private final Bitmap.CompressFormat format;
+    private final boolean owned; // Whether release() may recycle the bitmap
+
+    /**
+     * Encodes the bitmap to JPEG. The caller keeps ownership of the bitmap.
+     */
+    public BitmapEncoder(Bitmap bitmap) {
+        this(bitmap, Bitmap.CompressFormat.JPEG, false);
+    }
+
+    /**
+     * Encodes the bitmap in the given format. The caller keeps ownership of the bitmap.
+     */
+    public BitmapEncoder(Bitmap bitmap, Bitmap.CompressFormat format) {
+        this(bitmap, format, false);
+    }
+
+    /**
+     * @param owned Whether {@link #release()} recycles the bitmap, handing its ownership to the encoder.
+     */
+    public BitmapEncoder(Bitmap bitmap, Bitmap.CompressFormat format, boolean owned) {
+        this.bitmap = bitmap;
+        this.format = format;
+        this.owned = owned;
+    }
+
+    @Override
+    public int getWidth() {
+        return bitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return bitmap.getHeight();
+    }
+
+    @Override
+    public void encode(int quality, OutputStream output) throws IOException {
+        if (!bitmap.compress(format, quality, output)) {
+            throw new IOException("Unable to encode the bitmap as " + format);
+        }
+    }
+
+    @Override
+    public ImageEncoder scaled(int width, int height) {
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        // createScaledBitmap returns the bitmap itself when the size does not change
+        return new BitmapEncoder(scaled, format, scaled != bitmap);
+    }
+
+    @Override
+    public void release() {
+        if (owned) {
+            bitmap.recycle();
+        }
+    }
+}
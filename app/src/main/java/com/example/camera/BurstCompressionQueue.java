@@ -0,0 +1,245 @@
+package com.example.camera;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded producer/consumer queue between burst captures and a pool of compression workers.
+ * <p>
+ * The camera side offers captured JPEG frames, the workers decode and compress them with the
+ * same {@link CompressionPipeline} as the single-image path. The queue capacity is the backpressure:
+ * producers check {@link #remainingCapacity()} before requesting more frames, and are told
+ * through {@link Listener#onCapacityAvailable()} when a worker frees a slot.
+ * <p>
+ * The capacity is bounded in bytes as well as in frames, so full-resolution frames cannot pile up
+ * past the memory budget whatever their size. It is reported in frames, estimated from the
+ * largest frame queued so far. A frame is always accepted into an empty queue, so a frame larger
+ * than the whole budget still gets compressed.
+ */
+public class BurstCompressionQueue {
+
+    private static final String TAG = "BurstCompressionQueue";
+
+    /**
+     * Receives compressed frames and queue events. Called on worker threads.
+     */
+    public interface Listener {
+        void onFrameCompressed(String captureId, ImageCompressor.Result result);
+
+        void onFrameFailed(String captureId, Exception e);
+
+        void onCapacityAvailable();
+    }
+
+    private static class Frame {
+        final String captureId;
+        final byte[] jpegBytes;
+
+        Frame(String captureId, byte[] jpegBytes) {
+            this.captureId = captureId;
+            this.jpegBytes = jpegBytes;
+        }
+    }
+
+    private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+    private final int maxFrames;
+    private final long maxBytes;
+    private final long frameBytesHint;
+    private final int workerCount;
+    private final CompressionPipeline compressionPipeline;
+    private final Listener listener;
+
+    private final AtomicInteger framesQueued = new AtomicInteger();
+    private final AtomicInteger framesCompressed = new AtomicInteger();
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    private volatile long startTimeMs = SystemClock.elapsedRealtime();
+    private ExecutorService workers;
+    private long queuedBytes; // Guarded by this
+    private long largestFrameBytes; // Guarded by this
+
+    /**
+     * @param maxFrames           The maximum number of frames waiting for a worker.
+     * @param maxBytes            The maximum total size of the frames waiting for a worker.
+     * @param frameBytesHint      The expected size of a frame, to report the capacity in frames
+     *                            before the first one arrives.
+     * @param workerCount         The number of compression workers.
+     * @param compressionPipeline Decodes and compresses each frame.
+     * @param listener            Receives the results.
+     */
+    public BurstCompressionQueue(int maxFrames, long maxBytes, long frameBytesHint, int workerCount,
+                                 CompressionPipeline compressionPipeline, Listener listener) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.frameBytesHint = Math.max(1, frameBytesHint);
+        this.workerCount = workerCount;
+        this.compressionPipeline = compressionPipeline;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the workers. Does nothing if they are already running.
+     */
+    public synchronized void start() {
+        if (workers != null) {
+            return;
+        }
+        workers = Executors.newFixedThreadPool(workerCount, new CameraThreads.NamedThreadFactory("BurstCompressor"));
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::drain);
+        }
+    }
+
+    /**
+     * Stops the workers. Frames still queued are dropped.
+     */
+    public synchronized void shutdown() {
+        if (workers == null) {
+            return;
+        }
+        workers.shutdownNow();
+        workers = null;
+        List<Frame> dropped = new ArrayList<>();
+        queue.drainTo(dropped);
+        for (Frame frame : dropped) {
+            queuedBytes -= frame.jpegBytes.length;
+        }
+    }
+
+    /**
+     * Queues a captured frame for compression without blocking.
+     *
+     * @return false if the queue is full, in frames or in bytes, and the frame was not accepted.
+     */
+    public boolean offer(String captureId, byte[] jpegBytes) {
+        synchronized (this) {
+            largestFrameBytes = Math.max(largestFrameBytes, jpegBytes.length);
+            if (!queue.isEmpty() && (queue.size() >= maxFrames || queuedBytes + jpegBytes.length > maxBytes)) {
+                return false;
+            }
+            queue.add(new Frame(captureId, jpegBytes));
+            queuedBytes += jpegBytes.length;
+        }
+        framesQueued.incrementAndGet();
+        int depth = queue.size();
+        int peak;
+        while (depth > (peak = peakDepth.get()) && !peakDepth.compareAndSet(peak, depth)) {
+            // Retry until the peak is recorded
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new measurement window for the frame rates, counts and peak depth.
+     */
+    public void resetStatistics() {
+        framesQueued.set(0);
+        framesCompressed.set(0);
+        peakDepth.set(queue.size());
+        startTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return The number of frames the queue holds when full, at the estimated frame size.
+     */
+    public synchronized int getCapacity() {
+        return (int) Math.max(1, Math.min(maxFrames, maxBytes / getFrameBytes()));
+    }
+
+    /**
+     * @return The number of frames that can still be queued, at the estimated frame size; at
+     * least one while the queue is empty.
+     */
+    public synchronized int remainingCapacity() {
+        if (queue.isEmpty()) {
+            return getCapacity();
+        }
+        return (int) Math.max(0, Math.min(maxFrames - queue.size(), (maxBytes - queuedBytes) / getFrameBytes()));
+    }
+
+    /**
+     * @return The estimated size of the next frames: the largest so far, or the hint before the first.
+     */
+    private long getFrameBytes() {
+        return largestFrameBytes > 0 ? largestFrameBytes : frameBytesHint;
+    }
+
+    /**
+     * @return The total size of the frames waiting for a worker.
+     */
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getPeakDepth() {
+        return peakDepth.get();
+    }
+
+    public int getFramesQueued() {
+        return framesQueued.get();
+    }
+
+    public int getFramesCompressed() {
+        return framesCompressed.get();
+    }
+
+    /**
+     * @return The number of frames captured per second since {@link #resetStatistics()}.
+     */
+    public double getCaptureFramesPerSecond() {
+        return perSecond(framesQueued.get());
+    }
+
+    /**
+     * @return The number of frames compressed per second since {@link #resetStatistics()}.
+     */
+    public double getCompressedFramesPerSecond() {
+        return perSecond(framesCompressed.get());
+    }
+
+    private double perSecond(int frames) {
+        long elapsedMs = SystemClock.elapsedRealtime() - startTimeMs;
+        return elapsedMs > 0 ? frames * 1000.0 / elapsedMs : 0;
+    }
+
+    private void drain() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Frame frame = queue.poll(1, TimeUnit.SECONDS);
+                if (frame == null) {
+                    continue;
+                }
+                synchronized (this) {
+                    queuedBytes -= frame.jpegBytes.length;
+                }
+                listener.onCapacityAvailable();
+                compress(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void compress(Frame frame) {
+        try {
+            ImageCompressor.Result result = compressionPipeline.compress(SampledBitmapDecoder.fromBytes(frame.jpegBytes), frame.captureId).getResult();
+            framesCompressed.incrementAndGet();
+            listener.onFrameCompressed(frame.captureId, result);
+        } catch (Exception e) {
+            Log.e(TAG, "Error compressing frame " + frame.captureId, e);
+            listener.onFrameFailed(frame.captureId, e);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.camera;
+
+import android.annotation.SuppressLint;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.TextureView;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens and closes the camera with the activity, and hands it over only once the preview
+ * surface exists.
+ * <p>
+ * The device is opened as soon as the screen resumes, without waiting for the TextureView, so
+ * opening the camera overlaps with the surface being created; whichever finishes last triggers
+ * {@link Callback#onCameraReady}. Camera characteristics and stream maps are cached for the life of the process,
+ * and the time from open to the first preview frame is recorded for every start.
+ */
+public class CameraLifecycleManager implements TextureView.SurfaceTextureListener {
+
+    private static final String TAG = "CameraLifecycle";
+    private static final int MAX_LATENCY_SAMPLES = 20;
+
+    private static final Map<String, CameraCharacteristics> characteristicsCache = new ConcurrentHashMap<>();
+    private static final Map<String, StreamConfigurationMap> streamMapCache = new ConcurrentHashMap<>();
+
+    /**
+     * Called on the camera thread.
+     */
+    public interface Callback {
+        /**
+         * Both the device and the preview surface are ready, the session can be configured.
+         */
+        void onCameraReady(CameraDevice device, SurfaceTexture texture);
+
+        /**
+         * The device was disconnected or failed and has been closed.
+         */
+        void onCameraLost(int error);
+    }
+
+    private final CameraManager cameraManager;
+    private final TextureView textureView;
+    private final CameraThreads cameraThreads;
+    private final Callback callback;
+
+    private CameraDevice device;
+    private SurfaceTexture texture;
+    private boolean opening;
+    private boolean configured;
+    private long openStartMs;
+    private volatile boolean awaitingFirstFrame;
+    private final ArrayDeque<Long> startupLatenciesMs = new ArrayDeque<>();
+
+    public CameraLifecycleManager(CameraManager cameraManager, TextureView textureView,
+                                  CameraThreads cameraThreads, Callback callback) {
+        this.cameraManager = cameraManager;
+        this.textureView = textureView;
+        this.cameraThreads = cameraThreads;
+        this.callback = callback;
+        textureView.setSurfaceTextureListener(this);
+    }
+
+    /**
+     * @return The characteristics of the camera, read from the camera service only the first time.
+     */
+    public CameraCharacteristics getCharacteristics(String cameraId) throws CameraAccessException {
+        CameraCharacteristics characteristics = characteristicsCache.get(cameraId);
+        if (characteristics == null) {
+            characteristics = cameraManager.getCameraCharacteristics(cameraId);
+            characteristicsCache.put(cameraId, characteristics);
+        }
+        return characteristics;
+    }
+
+    /**
+     * @return The stream configurations of the camera, cached like its characteristics.
+     */
+    public StreamConfigurationMap getStreamConfigurationMap(String cameraId) throws CameraAccessException {
+        StreamConfigurationMap map = streamMapCache.get(cameraId);
+        if (map == null) {
+            map = getCharacteristics(cameraId).get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            streamMapCache.put(cameraId, map);
+        }
+        return map;
+    }
+
+    /**
+     * Starts opening the camera. Does nothing if it is already open or opening.
+     * The caller must hold the camera permission.
+     */
+    @SuppressLint("MissingPermission")
+    public synchronized void open(String cameraId) throws CameraAccessException {
+        if (device != null || opening) {
+            return;
+        }
+        opening = true;
+        configured = false;
+        openStartMs = SystemClock.elapsedRealtime();
+        awaitingFirstFrame = true;
+
+        // A surface that survived the pause does not report itself available again
+        if (texture == null && textureView.isAvailable()) {
+            texture = textureView.getSurfaceTexture();
+        }
+        cameraManager.openCamera(cameraId, stateCallback, cameraThreads.getCameraHandler());
+    }
+
+    /**
+     * Closes the camera. A device that is still opening is closed as soon as it opens.
+     */
+    public synchronized void close() {
+        opening = false;
+        configured = false;
+        awaitingFirstFrame = false;
+        if (device != null) {
+            device.close();
+            device = null;
+        }
+    }
+
+    private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(@NonNull CameraDevice camera) {
+            synchronized (CameraLifecycleManager.this) {
+                if (!opening) {
+                    camera.close(); // Closed while it was opening
+                    return;
+                }
+                opening = false;
+                device = camera;
+                Log.d(TAG, "Camera opened in " + (SystemClock.elapsedRealtime() - openStartMs) + " ms");
+            }
+            configureIfReady();
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice camera) {
+            onLost(camera, 0);
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice camera, int error) {
+            onLost(camera, error);
+        }
+
+        private void onLost(CameraDevice camera, int error) {
+            camera.close();
+            synchronized (CameraLifecycleManager.this) {
+                if (device == camera) {
+                    device = null;
+                }
+                opening = false;
+                configured = false;
+            }
+            callback.onCameraLost(error);
+        }
+    };
+
+    private void configureIfReady() {
+        CameraDevice readyDevice;
+        SurfaceTexture readyTexture;
+        synchronized (this) {
+            if (device == null || texture == null || configured) {
+                return;
+            }
+            configured = true;
+            readyDevice = device;
+            readyTexture = texture;
+        }
+        cameraThreads.getCameraHandler().post(() -> callback.onCameraReady(readyDevice, readyTexture));
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(@NonNull SurfaceTexture surface, int width, int height) {
+        synchronized (this) {
+            texture = surface;
+        }
+        configureIfReady();
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(@NonNull SurfaceTexture surface, int width, int height) {
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(@NonNull SurfaceTexture surface) {
+        synchronized (this) {
+            texture = null;
+            configured = false;
+        }
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(@NonNull SurfaceTexture surface) {
+        // Called for every preview frame, so only a volatile read unless this is the first one
+        if (!awaitingFirstFrame) {
+            return;
+        }
+        long latencyMs;
+        synchronized (this) {
+            if (!awaitingFirstFrame || !configured) {
+                return;
+            }
+            awaitingFirstFrame = false;
+            latencyMs = SystemClock.elapsedRealtime() - openStartMs;
+            if (startupLatenciesMs.size() == MAX_LATENCY_SAMPLES) {
+                startupLatenciesMs.removeFirst();
+            }
+            startupLatenciesMs.addLast(latencyMs);
+        }
+        Log.i(TAG, "First preview frame " + latencyMs + " ms after open, " + this);
+    }
+
+    /**
+     * @return The open-to-first-preview-frame latency of the latest start, or -1 if there is none yet.
+     */
+    public synchronized long getLastStartupLatencyMs() {
+        return startupLatenciesMs.isEmpty() ? -1 : startupLatenciesMs.getLast();
+    }
+
+    /**
+     * @return The average open-to-first-preview-frame latency over the recent starts.
+     */
+    public synchronized double getAverageStartupLatencyMs() {
+        if (startupLatenciesMs.isEmpty()) {
+            return 0;
+        }
+        long total = 0;
+        for (long latencyMs : startupLatenciesMs) {
+            total += latencyMs;
+        }
+        return (double) total / startupLatenciesMs.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "camera start: last %d ms, average %.0f ms over %d starts",
+                getLastStartupLatencyMs(), getAverageStartupLatencyMs(), startupLatenciesMs.size());
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.camera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads used by the Camera2 pipeline, so nothing but view updates runs on the main looper.
+ * <p>
+ * Camera callbacks are delivered on a dedicated background looper, and storage writes go to a
+ * small bounded I/O executor. When the I/O queue is full the submitting thread runs the write
+ * itself, which slows the producer down instead of queueing without limit.
+ */
+public class CameraThreads {
+
+    private static final int IO_THREADS = 2;
+    private static final int IO_QUEUE_CAPACITY = 8;
+    private static final long IO_KEEP_ALIVE_SECONDS = 30;
+
+    private HandlerThread cameraThread;
+    private Handler cameraHandler;
+    private ThreadPoolExecutor ioExecutor;
+
+    /**
+     * Starts the camera looper and the I/O executor. Does nothing if they are already running.
+     */
+    public synchronized void start() {
+        if (cameraThread != null) {
+            return;
+        }
+        cameraThread = new HandlerThread("CameraBackground", Process.THREAD_PRIORITY_DISPLAY);
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+
+        ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(IO_QUEUE_CAPACITY), new NamedThreadFactory("CameraIO"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        ioExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops the camera looper once its pending callbacks are delivered, and lets queued writes finish.
+     */
+    public synchronized void stop() {
+        if (cameraThread == null) {
+            return;
+        }
+        cameraThread.quitSafely();
+        cameraThread = null;
+        cameraHandler = null;
+        ioExecutor.shutdown();
+        ioExecutor = null;
+    }
+
+    /**
+     * @return The handler camera callbacks should be delivered on.
+     */
+    public synchronized Handler getCameraHandler() {
+        return cameraHandler;
+    }
+
+    /**
+     * @return The executor storage writes should run on.
+     */
+    public synchronized ExecutorService getIoExecutor() {
+        return ioExecutor;
+    }
+
+    /**
+     * Names threads so they are easy to find in traces, and keeps them at background priority.
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, prefix + "-" + count.incrementAndGet());
+        }
+    }
+}
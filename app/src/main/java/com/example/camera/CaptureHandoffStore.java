@@ -0,0 +1,118 @@
+package com.example.camera;
+
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Process-local, memory-bounded store that hands freshly captured JPEG bytes from the camera
+ * screen to the compressor screen without a round trip through storage.
+ * <p>
+ * Entries are keyed by capture ID and taken out exactly once. When the store is over its byte
+ * budget the least recently added captures are evicted, and callers fall back to the saved URI.
+ * The store also tracks where the originals of recent captures are saved, so the compressor can
+ * wait for that URI when the bytes are gone before the save has finished.
+ */
+public class CaptureHandoffStore {
+
+    private static final long MAX_BYTES = Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
+    private static final int MAX_SAVED_ORIGINALS = 32; // Captures whose original URI is remembered
+
+    private static final CaptureHandoffStore INSTANCE = new CaptureHandoffStore((int) MAX_BYTES);
+
+    private final LruCache<String, byte[]> entries;
+
+    // Capture ID to the URI of its saved original, or to null while the save is in flight; guarded by this
+    private final LinkedHashMap<String, Uri> savedOriginals = new LinkedHashMap<String, Uri>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Uri> eldest) {
+            return size() > MAX_SAVED_ORIGINALS;
+        }
+    };
+
+    CaptureHandoffStore(int maxBytes) {
+        entries = new LruCache<String, byte[]>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    public static CaptureHandoffStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return A new, unique capture ID.
+     */
+    public static String newCaptureId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Keeps the bytes of a capture until the compressor takes them.
+     */
+    public void put(String captureId, byte[] bytes) {
+        entries.put(captureId, bytes);
+    }
+
+    /**
+     * @return Whether a capture of the given size fits the store at all, so callers can skip
+     * copying it out of the camera buffer when it would be evicted straight away.
+     */
+    public boolean canAccept(int sizeBytes) {
+        return sizeBytes <= entries.maxSize();
+    }
+
+    /**
+     * Removes and returns the bytes of a capture.
+     *
+     * @return The bytes, or null if they were evicted or the process was restarted since the capture.
+     */
+    public byte[] take(String captureId) {
+        if (captureId == null) {
+            return null;
+        }
+        return entries.remove(captureId);
+    }
+
+    /**
+     * Records that the original of a capture is being saved, so {@link #awaitOriginal} waits for it.
+     */
+    public synchronized void expectOriginal(String captureId) {
+        savedOriginals.put(captureId, null);
+    }
+
+    /**
+     * Records the URI the original of a capture was saved under.
+     */
+    public synchronized void putOriginal(String captureId, Uri uri) {
+        savedOriginals.put(captureId, uri);
+        notifyAll();
+    }
+
+    /**
+     * Records that the original of a capture could not be saved.
+     */
+    public synchronized void failOriginal(String captureId) {
+        savedOriginals.remove(captureId);
+        notifyAll();
+    }
+
+    /**
+     * Waits for the original of a capture to be saved, if its save is still in flight.
+     *
+     * @return The URI of the saved original, or null if it failed or is not known to this process.
+     */
+    public synchronized Uri awaitOriginal(String captureId) throws InterruptedException {
+        while (savedOriginals.containsKey(captureId) && savedOriginals.get(captureId) == null) {
+            wait();
+        }
+        return savedOriginals.get(captureId);
+    }
+}
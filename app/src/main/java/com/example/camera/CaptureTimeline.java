@@ -0,0 +1,225 @@
+package com.example.camera;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Always-on stage timing from the shutter to the saved compressed file, keyed by capture ID.
+ * <p>
+ * Each stage is stamped with {@link #begin} and {@link #end}, on any thread. Stamping is a clock
+ * read and an array store under a short lock; the durations of the most recent captures are kept
+ * per stage for percentiles, which are only computed when they are read. On API 29 and above each
+ * stage is also an async {@link Trace} section, so it shows up in systrace and Perfetto. A capture
+ * abandoned halfway is eventually dropped, and its sections still open are ended then.
+ */
+public class CaptureTimeline {
+
+    /**
+     * The timed stages. They may overlap, e.g. {@link #TOTAL} spans all of them.
+     */
+    public enum Stage {
+        CAPTURE("capture"), // Shutter to onCaptureCompleted
+        JPEG("jpeg"), // Shutter to the JPEG in the ImageReader
+        SAVE_ORIGINAL("save_original"),
+        HANDOFF("handoff"), // Activity launch to the compressor picking the capture up
+        DECODE("decode"),
+        COMPRESS("compress"), // Every pass of the quality search
+        PREVIEW("preview"),
+        SAVE_COMPRESSED("save_compressed"),
+        TOTAL("shutter_to_saved"),
+        YUV_ENCODE("yuv_encode"), // YUV frame in the ImageReader to the final JPEG
+        TOTAL_YUV("shutter_to_saved_yuv"), // Shutter to the saved JPEG of a YUV capture
+        CPU_JPEG("cpu_jpeg_path"), // App CPU time to decode and compress a camera JPEG, see record()
+        CPU_YUV("cpu_yuv_path"); // App CPU time to convert and encode a YUV frame, see record()
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final int MAX_OPEN_CAPTURES = 32; // Captures abandoned halfway are dropped
+    private static final int WINDOW_SIZE = 256; // Durations kept per stage for the percentiles
+    private static final int STAGE_COUNT = Stage.values().length;
+
+    private static final CaptureTimeline INSTANCE = new CaptureTimeline();
+
+    // Start times in ns by capture, indexed by stage; 0 for stages that are not running
+    private final Map<String, long[]> openCaptures = new LinkedHashMap<String, long[]>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            if (size() <= MAX_OPEN_CAPTURES) {
+                return false;
+            }
+            endTraceSections(eldest.getKey(), eldest.getValue());
+            return true;
+        }
+    };
+    private final long[][] windows = new long[STAGE_COUNT][WINDOW_SIZE];
+    private final long[] counts = new long[STAGE_COUNT];
+
+    public static CaptureTimeline getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing a stage of a capture. Does nothing if the capture ID is null.
+     */
+    public void begin(String captureId, Stage stage) {
+        if (captureId == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (this) {
+            long[] starts = openCaptures.get(captureId);
+            if (starts == null) {
+                starts = new long[STAGE_COUNT];
+                openCaptures.put(captureId, starts);
+            }
+            starts[stage.ordinal()] = now;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(stage.getLabel(), captureId.hashCode());
+        }
+    }
+
+    /**
+     * Stops timing a stage of a capture and records its duration. Does nothing if the capture ID
+     * is null or the stage was not started.
+     */
+    public void end(String captureId, Stage stage) {
+        if (captureId == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        int index = stage.ordinal();
+        synchronized (this) {
+            long[] starts = openCaptures.get(captureId);
+            if (starts == null || starts[index] == 0) {
+                return;
+            }
+            windows[index][(int) (counts[index] % WINDOW_SIZE)] = now - starts[index];
+            counts[index]++;
+            starts[index] = 0;
+            if (stage == Stage.TOTAL || stage == Stage.TOTAL_YUV) {
+                openCaptures.remove(captureId);
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(stage.getLabel(), captureId.hashCode());
+        }
+    }
+
+    /**
+     * Ends the trace sections of the stages still running in a dropped capture, without recording
+     * their durations.
+     */
+    private static void endTraceSections(String captureId, long[] starts) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+        for (Stage stage : Stage.values()) {
+            if (starts[stage.ordinal()] != 0) {
+                Trace.endAsyncSection(stage.getLabel(), captureId.hashCode());
+            }
+        }
+    }
+
+    /**
+     * Records a duration the caller measured itself, such as CPU time, which has no start and
+     * end on the timeline. Does nothing if the duration is negative, i.e. unknown.
+     */
+    public void record(Stage stage, long durationNanos) {
+        if (durationNanos < 0) {
+            return;
+        }
+        int index = stage.ordinal();
+        synchronized (this) {
+            windows[index][(int) (counts[index] % WINDOW_SIZE)] = durationNanos;
+            counts[index]++;
+        }
+    }
+
+    /**
+     * @return The number of recorded durations of the stage.
+     */
+    public synchronized long getCount(Stage stage) {
+        return counts[stage.ordinal()];
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return The stage duration at the percentile over the recent captures in ms, or 0 if none was recorded.
+     */
+    public double getPercentileMs(Stage stage, double percentile) {
+        return percentileMs(sortedWindow(stage), percentile);
+    }
+
+    private synchronized long[] sortedWindow(Stage stage) {
+        int index = stage.ordinal();
+        long[] durations = Arrays.copyOf(windows[index], (int) Math.min(counts[index], WINDOW_SIZE));
+        Arrays.sort(durations);
+        return durations;
+    }
+
+    private static double percentileMs(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        // Nearest rank
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))] / 1e6;
+    }
+
+    /**
+     * @return The count and the p50, p95, p99 and maximum duration in ms of every stage.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject stages = new JSONObject();
+        for (Stage stage : Stage.values()) {
+            long[] sorted = sortedWindow(stage);
+            JSONObject json = new JSONObject();
+            json.put("count", getCount(stage));
+            json.put("window", sorted.length);
+            json.put("p50_ms", percentileMs(sorted, 50));
+            json.put("p95_ms", percentileMs(sorted, 95));
+            json.put("p99_ms", percentileMs(sorted, 99));
+            json.put("max_ms", percentileMs(sorted, 100));
+            stages.put(stage.getLabel(), json);
+        }
+        JSONObject json = new JSONObject();
+        json.put("stages", stages);
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            long[] sorted = sortedWindow(stage);
+            if (sorted.length == 0) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(String.format(Locale.US, "%s: p50 %.0f ms, p95 %.0f ms, p99 %.0f ms",
+                    stage.getLabel(), percentileMs(sorted, 50), percentileMs(sorted, 95), percentileMs(sorted, 99)));
+        }
+        return builder.toString();
+    }
+}
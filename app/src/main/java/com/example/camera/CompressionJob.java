@@ -0,0 +1,424 @@
+package com.example.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses, caches and saves one image apart from the activity that shows it, so that a
+ * rotation reattaches to the job instead of running it again. Jobs are owned by the
+ * {@link CompressionViewModel} and only hold the application context.
+ * <p>
+ * Progress is published as a cumulative {@link State}: an observer that attaches late gets the
+ * latest one, with the preview and details produced so far. Cancelling interrupts the worker,
+ * which stops before the next encode. Once the image is compressed the job is no longer
+ * cancelled: the interrupt would otherwise close the file channels the output is saved and
+ * cached through, failing the save halfway and leaving partial files behind.
+ */
+public class CompressionJob implements Runnable {
+
+    private static final String TAG = "CompressionJob";
+
+    private static final String TIMELINE_TAG = "CaptureTimeline";
+    private static final String TIMELINE_FILE_NAME = "capture_timeline.json"; // Stage percentiles, see exportTimeline()
+
+    public enum Status {
+        RUNNING,
+        COMPRESSED, // Shown; being saved, or already saved by an earlier job if it came from the disk cache
+        SAVED,
+        SAVE_FAILED,
+        FAILED,
+        CANCELLED
+    }
+
+    /**
+     * Everything the job has produced so far.
+     */
+    public static class State {
+        private final Status status;
+        private final Bitmap preview;
+        private final String details;
+        private final String savedName;
+
+        State(Status status, Bitmap preview, String details, String savedName) {
+            this.status = status;
+            this.preview = preview;
+            this.details = details;
+            this.savedName = savedName;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return The preview of the compressed image, or of an earlier compression of it while
+         * this one runs, or null if there is none yet.
+         */
+        public Bitmap getPreview() {
+            return preview;
+        }
+
+        /**
+         * @return The properties of the original and compressed images, or null until it is compressed.
+         */
+        public String getDetails() {
+            return details;
+        }
+
+        /**
+         * @return The display name of the saved file, or null until it is saved.
+         */
+        public String getSavedName() {
+            return savedName;
+        }
+    }
+
+    private final Context context;
+    private final CompressionPipeline compressionPipeline;
+    private final Uri imageUri;
+    private final String captureId;
+    private final String originalName;
+    private final String imageDetails;
+    private final String sourceKey; // The capture ID, or the URI of an image opened from storage
+    private final String previewKey;
+    private final int previewWidth;
+    private final int previewHeight;
+    private final MutableLiveData<State> state;
+    private State current; // Guarded by this
+    private boolean compressed; // Guarded by this; set once cancelling no longer interrupts the job
+    private volatile Future<?> future;
+
+    /**
+     * @param context             Any context; only the application context is kept.
+     * @param compressionPipeline Decodes and compresses the image.
+     * @param imageUri            The URI of the image to be compressed, or null for a capture that was handed off.
+     * @param captureId           The ID of the capture, under which its bytes may have been handed off
+     *                            and its stages are timed, or null to just read the URI.
+     * @param originalName        The display name the original of the capture is saved under, to
+     *                            find it in MediaStore once the handed-off bytes are gone, or null.
+     * @param imageDetails        The details of the original image.
+     * @param previewWidth        The width previews are decoded at.
+     * @param previewHeight       The height previews are decoded at.
+     */
+    CompressionJob(Context context, CompressionPipeline compressionPipeline, Uri imageUri, String captureId,
+                   String originalName, String imageDetails, int previewWidth, int previewHeight) {
+        this.context = context.getApplicationContext();
+        this.compressionPipeline = compressionPipeline;
+        this.imageUri = imageUri;
+        this.captureId = captureId;
+        this.originalName = originalName;
+        this.imageDetails = imageDetails;
+        this.sourceKey = captureId != null ? captureId : imageUri.toString();
+        this.previewKey = PreviewCache.key(compressionPipeline.getFormat(), sourceKey);
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+
+        // Show the preview right away if this capture was already shown
+        current = new State(Status.RUNNING, PreviewCache.getInstance().get(previewKey), null, null);
+        state = new MutableLiveData<>(current);
+    }
+
+    /**
+     * @return The state of the job, delivered on the main thread.
+     */
+    public LiveData<State> getState() {
+        return state;
+    }
+
+    /**
+     * @return Whether a new request for the same image should reuse this job rather than start another.
+     */
+    public synchronized boolean isReusable() {
+        return current.getStatus() != Status.FAILED && current.getStatus() != Status.CANCELLED;
+    }
+
+    void start(ExecutorService executor) {
+        future = executor.submit(this);
+    }
+
+    /**
+     * Stops the job before its next encode, or before it starts if it is still queued. Does
+     * nothing once the image is compressed; it is then saved.
+     */
+    synchronized void cancel() {
+        Future<?> running = future;
+        if (running != null && !compressed) {
+            running.cancel(true);
+        }
+    }
+
+    /**
+     * Ends the cancellable part of the job, consuming an interrupt that arrived before it.
+     *
+     * @return Whether the job was cancelled while it was compressing.
+     */
+    private synchronized boolean finishCompressing() {
+        compressed = true;
+        return Thread.interrupted();
+    }
+
+    @Override
+    public void run() {
+        CaptureTimeline timeline = CaptureTimeline.getInstance();
+        timeline.end(captureId, CaptureTimeline.Stage.HANDOFF);
+        DiskLruCache diskCache = DiskLruCache.getInstance(context);
+        OutputFormat format = compressionPipeline.getFormat();
+        try {
+            // This image was already compressed and saved: show the cached output instead. It is
+            // keyed by the capture ID, or by the URI of an image opened from storage
+            try (DiskLruCache.Snapshot cachedOutput = diskCache.get(compressedOutputKey(format, sourceKey))) {
+                if (cachedOutput != null) {
+                    showCachedOutput(cachedOutput, diskCache);
+                    return;
+                }
+            }
+
+            // Read the original image straight from the captured bytes when they are still
+            // in memory, otherwise from the disk cache, otherwise from storage. The raw capture
+            // is held open until it is decoded, so evicting it meanwhile does not fail the decode
+            byte[] capturedBytes = CaptureHandoffStore.getInstance().take(captureId);
+            DiskLruCache.Snapshot rawCapture = capturedBytes == null && captureId != null ? diskCache.get(ImgCompressorActivity.rawCaptureKey(captureId)) : null;
+            Uri sourceUri = capturedBytes == null && rawCapture == null && imageUri == null ? findSavedOriginal() : imageUri;
+            if (capturedBytes == null && rawCapture == null && sourceUri == null) {
+                throw new IOException("Capture " + captureId + " is no longer in memory, in the disk cache or in MediaStore");
+            }
+            SampledBitmapDecoder.Source source = capturedBytes != null ? SampledBitmapDecoder.fromBytes(capturedBytes)
+                    : rawCapture != null ? SampledBitmapDecoder.fromStream(rawCapture::newInputStream)
+                    : SampledBitmapDecoder.fromStream(() -> context.getContentResolver().openInputStream(sourceUri));
+
+            // Decode at the planned size and compress it until it is less than MAX_COMPRESSED_SIZE_MB
+            CompressionPipeline.Output output;
+            try {
+                output = compressionPipeline.compress(source, captureId);
+            } finally {
+                if (rawCapture != null) {
+                    rawCapture.close();
+                }
+            }
+            ImageCompressor.Result result = output.getResult();
+            boolean savingResult = false; // Whether the save listener releases the result
+            try {
+                if (finishCompressing()) {
+                    throw new InterruptedIOException("Cancelled after compressing");
+                }
+                if (captureId != null) {
+                    timeline.record(CaptureTimeline.Stage.CPU_JPEG, output.getCpuTimeNanos());
+                }
+                if (rawCapture != null) {
+                    diskCache.remove(ImgCompressorActivity.rawCaptureKey(captureId));
+                }
+
+                // Decode only what the view can show, straight from the pooled buffer
+                Bitmap preview = current().getPreview();
+                if (preview == null) {
+                    timeline.begin(captureId, CaptureTimeline.Stage.PREVIEW);
+                    preview = SampledBitmapDecoder.decode(
+                            SampledBitmapDecoder.fromBytes(result.getBuffer(), 0, result.getSize()),
+                            new SampledBitmapDecoder.Options(previewWidth, previewHeight, 4L * previewWidth * previewHeight));
+                    if (preview != null) {
+                        PreviewCache.getInstance().put(previewKey, preview);
+                    }
+                    timeline.end(captureId, CaptureTimeline.Stage.PREVIEW);
+                }
+
+                // Display the properties of the original and compressed images
+                String details = "Original Image:\n" +
+                        imageDetails +
+                        "\n" +
+                        "Compressed Image:\n" +
+                        "Width: " + output.getWidth() + " px\n" +
+                        "Height: " + output.getHeight() + " px\n" +
+                        "Decode: " + (output.isTiled() ? "tiled" : "whole image") + "\n" +
+                        "Size: " + result.getSize() / 1024 + " KB\n" +
+                        "Format: " + output.getFormat() + ", encode " + output.getEncodeTimeMs() + " ms\n" +
+                        "Quality: " + result.getQuality() + " (" + result.getEncodeCount() + " encodes, " + output.getPasses() + " passes)\n" +
+                        "Compression: " + CompressionMetrics.getInstance() + "\n" +
+                        "Buffer pool: " + ByteBufferPool.getInstance() + "\n" +
+                        "Preview cache: " + PreviewCache.getInstance() + "\n" +
+                        "Disk cache: " + diskCache + "\n" +
+                        "Timing:\n" + timeline;
+                publish(new State(Status.COMPRESSED, preview, details, null));
+                savingResult = saveCompressedImage(result, diskCache);
+            } finally {
+                if (!savingResult) {
+                    result.release();
+                }
+            }
+        } catch (InterruptedIOException e) {
+            Log.d(TAG, "Cancelled: " + e.getMessage());
+            publish(Status.CANCELLED);
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading or compressing " + imageUri, e);
+            publish(Status.FAILED);
+        }
+    }
+
+    /**
+     * Finds the saved original of a capture whose handed-off bytes were evicted, or dropped by a
+     * process restart: from the save this process started, waiting for it if it is still in
+     * flight, otherwise by looking its name up in MediaStore.
+     *
+     * @return The URI of the original, or null if it cannot be found.
+     */
+    private Uri findSavedOriginal() throws InterruptedIOException {
+        try {
+            Uri uri = CaptureHandoffStore.getInstance().awaitOriginal(captureId);
+            if (uri != null) {
+                return uri;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Cancelled waiting for the original of " + captureId);
+        }
+        return originalName != null ? MediaStoreSaveQueue.getInstance(context).findSaved(originalName) : null;
+    }
+
+    /**
+     * Shows a compressed output from the disk cache, without compressing or saving it again.
+     */
+    private void showCachedOutput(DiskLruCache.Snapshot cachedOutput, DiskLruCache diskCache) throws IOException {
+        Bitmap preview = current().getPreview();
+        if (preview == null) {
+            preview = SampledBitmapDecoder.decode(cachedOutput::newInputStream,
+                    new SampledBitmapDecoder.Options(previewWidth, previewHeight, 4L * previewWidth * previewHeight));
+            if (preview != null) {
+                PreviewCache.getInstance().put(previewKey, preview);
+            }
+        }
+        String details = "Original Image:\n" +
+                imageDetails +
+                "\n" +
+                "Compressed Image (cached):\n" +
+                "Format: " + compressionPipeline.getFormat() + "\n" +
+                "Size: " + cachedOutput.length() / 1024 + " KB\n" +
+                "Disk cache: " + diskCache;
+        publish(new State(Status.COMPRESSED, preview, details, null));
+    }
+
+    /**
+     * Keeps a copy of the compressed output, so reopening the same image shows it without
+     * compressing it again. Only called once the output is saved, so a cached entry always stands
+     * for a saved image. Failing to cache it is not an error.
+     */
+    private void cacheCompressedOutput(DiskLruCache diskCache, ImageCompressor.Result result) {
+        try {
+            diskCache.put(compressedOutputKey(compressionPipeline.getFormat(), sourceKey),
+                    ByteBuffer.wrap(result.getBuffer(), 0, result.getSize()));
+        } catch (IOException e) {
+            Log.w(TAG, "Compressed image not cached: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the compressed image to the device's storage through the save queue, which spools it
+     * on this thread.
+     *
+     * @param diskCache Where to cache the output once it is saved, or null not to cache it. The
+     *                  result is then kept until the save finishes.
+     * @return Whether the save listener took over the result and releases it; if not, the result
+     * can be released once this returns.
+     */
+    private boolean saveCompressedImage(ImageCompressor.Result result, DiskLruCache diskCache) {
+        CaptureTimeline timeline = CaptureTimeline.getInstance();
+        timeline.begin(captureId, CaptureTimeline.Stage.SAVE_COMPRESSED);
+        try {
+            enqueueCompressedImage(context, compressionPipeline.getFormat(), result, new MediaStoreSaveQueue.Listener() {
+                @Override
+                public void onSaved(String displayName, Uri uri) {
+                    if (diskCache != null) {
+                        cacheCompressedOutput(diskCache, result);
+                        result.release();
+                    }
+                    timeline.end(captureId, CaptureTimeline.Stage.SAVE_COMPRESSED);
+                    if (captureId != null) {
+                        timeline.end(captureId, CaptureTimeline.Stage.TOTAL);
+                        if (Log.isLoggable(TIMELINE_TAG, Log.DEBUG)) {
+                            exportTimeline();
+                        }
+                    }
+                    State compressed = current();
+                    publish(new State(Status.SAVED, compressed.getPreview(), compressed.getDetails(), displayName));
+                }
+
+                @Override
+                public void onFailed(String displayName, IOException e) {
+                    if (diskCache != null) {
+                        result.release();
+                    }
+                    publish(Status.SAVE_FAILED);
+                }
+            });
+            return diskCache != null;
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving compressed image", e);
+            publish(Status.SAVE_FAILED);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the stage percentiles of the capture timeline as JSON to the app's files directory,
+     * where they can be pulled with {@code adb shell run-as com.example.camera cat files/capture_timeline.json}.
+     * Serializing and writing them takes a while, so it is only done after a save while debug
+     * logging is turned on with {@code adb shell setprop log.tag.CaptureTimeline DEBUG}.
+     */
+    private void exportTimeline() {
+        try (FileOutputStream output = new FileOutputStream(new File(context.getFilesDir(), TIMELINE_FILE_NAME))) {
+            String json = CaptureTimeline.getInstance().toJson().toString(2);
+            output.write(json.getBytes(StandardCharsets.UTF_8));
+            Log.d(TIMELINE_TAG, json);
+        } catch (IOException | JSONException e) {
+            Log.e(TIMELINE_TAG, "Error exporting the capture timeline: " + e.getMessage());
+        }
+    }
+
+    private synchronized State current() {
+        return current;
+    }
+
+    private synchronized void publish(Status status) {
+        State previous = current();
+        publish(new State(status, previous.getPreview(), previous.getDetails(), previous.getSavedName()));
+    }
+
+    private synchronized void publish(State next) {
+        current = next;
+        state.postValue(next);
+    }
+
+    /**
+     * @return The disk cache key of the compressed output of a capture ID or image URI in a format.
+     */
+    static String compressedOutputKey(OutputFormat format, String sourceKey) {
+        return "compressed:" + format + ":" + sourceKey;
+    }
+
+    /**
+     * Spools a compressed image into the save queue on the calling thread. The result can be
+     * released once this returns; MediaStore is written in the background.
+     *
+     * @param result   The compressed image.
+     * @param listener Notified once the image is in MediaStore, or null.
+     */
+    static void enqueueCompressedImage(Context context, OutputFormat format, ImageCompressor.Result result,
+                                       MediaStoreSaveQueue.Listener listener) throws IOException {
+        String name = "IMG_COMPRESSED_" + System.currentTimeMillis() + "." + format.getExtension();
+        MediaStoreSaveQueue.getInstance(context).enqueue(name, format.getMimeType(),
+                ByteBuffer.wrap(result.getBuffer(), 0, result.getSize()), listener);
+    }
+}
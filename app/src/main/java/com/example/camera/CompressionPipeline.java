@@ -0,0 +1,272 @@
+package com.example.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Decode, plan and compress, shared by the single-image, burst and batch paths.
+ * <p>
+ * The {@link CompressionPlanner} picks the output size from the source size and the byte budget
+ * before anything is decoded, so the decoder produces the planned size in a single sampled and
+ * scaled pass. When a pass misses the budget at its quality floor, the decoded bitmap is scaled
+ * down once more and compressed again, instead of settling for an oversized, low-quality file.
+ * Sources too large to decode in one go within the budget are decoded by the {@link TiledBitmapDecoder}.
+ */
+public class CompressionPipeline {
+
+    private static final String TAG = "CompressionPipeline";
+
+    /**
+     * A compressed image and how it was produced.
+     */
+    public static class Output {
+        private final ImageCompressor.Result result;
+        private final int width;
+        private final int height;
+        private final int sourceWidth;
+        private final int sourceHeight;
+        private final int passes;
+        private final OutputFormat format;
+        private final long encodeNanos;
+        private final long cpuNanos;
+        private final boolean tiled;
+
+        Output(ImageCompressor.Result result, int width, int height, int sourceWidth, int sourceHeight, int passes,
+               OutputFormat format, long encodeNanos, long cpuNanos, boolean tiled) {
+            this.result = result;
+            this.width = width;
+            this.height = height;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.passes = passes;
+            this.format = format;
+            this.encodeNanos = encodeNanos;
+            this.cpuNanos = cpuNanos;
+            this.tiled = tiled;
+        }
+
+        /**
+         * @return The compressed image. Its buffer must be released once it is stored.
+         */
+        public ImageCompressor.Result getResult() {
+            return result;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getSourceWidth() {
+            return sourceWidth;
+        }
+
+        public int getSourceHeight() {
+            return sourceHeight;
+        }
+
+        /**
+         * @return The number of planned passes it took, 1 unless the first plan missed the budget.
+         */
+        public int getPasses() {
+            return passes;
+        }
+
+        public OutputFormat getFormat() {
+            return format;
+        }
+
+        /**
+         * @return The time spent in the quality search of every pass, downscaling excluded.
+         */
+        public long getEncodeTimeMs() {
+            return encodeNanos / 1_000_000;
+        }
+
+        /**
+         * @return The CPU time of the calling thread from the start of the decode, or of the
+         * compression if there was none, to the end of the compression, or -1 if it cannot be measured.
+         */
+        public long getCpuTimeNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * @return Whether the source was decoded tile by tile.
+         */
+        public boolean isTiled() {
+            return tiled;
+        }
+    }
+
+    private final long targetSizeBytes;
+    private final long maxDecodeBytes;
+    private final ImageCompressor.Strategy strategy;
+    private final OutputFormat format;
+    private final CompressionPlanner planner;
+
+    /**
+     * @param targetSizeBytes The maximum size of the compressed image in bytes.
+     * @param minQuality      The absolute quality floor.
+     * @param maxDimension    The maximum width or height of the compressed image.
+     * @param maxDecodeBytes  The maximum size of the decoded bitmap in bytes.
+     * @param strategy        How the compressor chooses the quality.
+     * @param format          The format to write, which must be {@link OutputFormat#isSupported() supported}.
+     */
+    public CompressionPipeline(long targetSizeBytes, int minQuality, int maxDimension, long maxDecodeBytes,
+                               ImageCompressor.Strategy strategy, OutputFormat format) {
+        if (!format.isSupported()) {
+            throw new IllegalArgumentException(format + " is not supported on this device");
+        }
+        this.targetSizeBytes = targetSizeBytes;
+        this.maxDecodeBytes = maxDecodeBytes;
+        this.strategy = strategy;
+        this.format = format;
+        this.planner = new CompressionPlanner(targetSizeBytes, maxDimension, minQuality, format.getBytesPerPixel());
+    }
+
+    public OutputFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return The peak memory of one compression, from the planned decode: while decoding, the
+     * sampled and scaled bitmaps, which stay within the decode budget or are decoded by tiles;
+     * then the bitmap at the largest planned size and two encode buffers. A replan's downscaled
+     * copy is smaller than the bitmap and only briefly held with it, so it is not counted.
+     */
+    public long getMaxJobBytes() {
+        long plannedBitmapBytes = Math.min(maxDecodeBytes,
+                planner.getMaxPlannedPixels() * SampledBitmapDecoder.getBytesPerPixel(Bitmap.Config.ARGB_8888));
+        return Math.max(maxDecodeBytes, plannedBitmapBytes + 2 * targetSizeBytes);
+    }
+
+    /**
+     * Decodes and compresses the image on the calling thread.
+     *
+     * @param source The encoded image.
+     * @return The compressed image.
+     */
+    public Output compress(SampledBitmapDecoder.Source source) throws IOException {
+        return compress(source, null);
+    }
+
+    /**
+     * Decodes and compresses the image on the calling thread, timing the decode and compress
+     * stages of the capture in the {@link CaptureTimeline}.
+     *
+     * @param source    The encoded image.
+     * @param captureId The capture the image belongs to, or null if it is not timed.
+     * @return The compressed image.
+     */
+    public Output compress(SampledBitmapDecoder.Source source, String captureId) throws IOException {
+        long cpuStart = Debug.threadCpuTimeNanos();
+        CaptureTimeline timeline = CaptureTimeline.getInstance();
+        timeline.begin(captureId, CaptureTimeline.Stage.DECODE);
+        BitmapFactory.Options bounds = source.readBounds();
+        int sourceWidth = bounds.outWidth;
+        int sourceHeight = bounds.outHeight;
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new IOException("Unable to read the image bounds");
+        }
+
+        CompressionPlanner.Plan plan = planner.plan(sourceWidth, sourceHeight);
+        SampledBitmapDecoder.Options decodeLimits = new SampledBitmapDecoder.Options(plan.getWidth(), plan.getHeight(), maxDecodeBytes);
+        Bitmap bitmap = null;
+        boolean tiled = TiledBitmapDecoder.shouldTile(sourceWidth, sourceHeight, decodeLimits);
+        if (tiled) {
+            try {
+                bitmap = TiledBitmapDecoder.decode(source, sourceWidth, sourceHeight, decodeLimits);
+            } catch (InterruptedIOException e) {
+                throw e; // Cancelled, not a format the region decoder cannot read
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to decode by tiles, decoding the whole image: " + e.getMessage());
+                tiled = false;
+            }
+        }
+        if (bitmap == null) {
+            bitmap = SampledBitmapDecoder.decode(source, sourceWidth, sourceHeight, decodeLimits);
+        }
+        if (bitmap == null) {
+            throw new IOException("Unable to decode the image");
+        }
+        timeline.end(captureId, CaptureTimeline.Stage.DECODE);
+
+        return compress(new BitmapEncoder(bitmap, format.getCompressFormat(), true), plan,
+                sourceWidth, sourceHeight, tiled, captureId, cpuStart);
+    }
+
+    /**
+     * Compresses an image that needs no decoding, such as a camera frame, on the calling thread,
+     * timing the compress stage of the capture in the {@link CaptureTimeline}. It is scaled down
+     * first if the plan calls for fewer pixels.
+     *
+     * @param image     The image, which must encode to this pipeline's {@link #getFormat() format}.
+     *                  It is released once it is compressed.
+     * @param captureId The capture the image belongs to, or null if it is not timed.
+     * @return The compressed image.
+     */
+    public Output compress(ImageEncoder image, String captureId) throws IOException {
+        long cpuStart = Debug.threadCpuTimeNanos();
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        CompressionPlanner.Plan plan = planner.plan(sourceWidth, sourceHeight);
+        ImageEncoder planned = image;
+        if (plan.getWidth() != sourceWidth || plan.getHeight() != sourceHeight) {
+            try {
+                planned = image.scaled(plan.getWidth(), plan.getHeight());
+            } finally {
+                image.release();
+            }
+        }
+        return compress(planned, plan, sourceWidth, sourceHeight, false, captureId, cpuStart);
+    }
+
+    /**
+     * Runs the quality search of the plan, and of the following plans while a pass misses the
+     * budget. Releases the image.
+     */
+    private Output compress(ImageEncoder image, CompressionPlanner.Plan plan, int sourceWidth, int sourceHeight,
+                            boolean tiled, String captureId, long cpuStart) throws IOException {
+        CaptureTimeline timeline = CaptureTimeline.getInstance();
+        timeline.begin(captureId, CaptureTimeline.Stage.COMPRESS);
+        ImageEncoder current = image;
+        long encodeNanos = 0;
+        try {
+            while (true) {
+                long encodeStart = System.nanoTime();
+                ImageCompressor.Result result = format.createCompressor(targetSizeBytes, plan.getMinQuality(), strategy)
+                        .compress(current);
+                encodeNanos += System.nanoTime() - encodeStart;
+                Log.d(TAG, "Compressed to " + result.getSize() + " bytes of " + format + " at quality " + result.getQuality()
+                        + " after " + result.getEncodeCount() + " full and " + result.getProbeEncodeCount()
+                        + " probe encodes, buffer pool: " + ByteBufferPool.getInstance());
+                CompressionPlanner.Plan next = result.isWithinTarget() ? null : planner.replan(plan, result.getSize());
+                if (next == null) {
+                    timeline.end(captureId, CaptureTimeline.Stage.COMPRESS);
+                    long cpuNanos = cpuStart >= 0 ? Debug.threadCpuTimeNanos() - cpuStart : -1;
+                    return new Output(result, current.getWidth(), current.getHeight(), sourceWidth, sourceHeight, plan.getPass(),
+                            format, encodeNanos, cpuNanos, tiled);
+                }
+
+                // Fewer pixels rather than lower quality: resize in one filtered pass and try again.
+                // The replan always shrinks, so the scaled image never shares the pixels of this one
+                result.release();
+                ImageEncoder scaled = current.scaled(next.getWidth(), next.getHeight());
+                current.release();
+                current = scaled;
+                plan = next;
+            }
+        } finally {
+            current.release();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.camera;
+
+import android.util.Log;
+
+/**
+ * Decides up front how an image reaches its byte budget: by encoding fewer pixels, by lowering
+ * the quality, or both.
+ * <p>
+ * The pixel count is chosen so that a typical photo fits the budget at a comfortable quality,
+ * and the quality search is only allowed down to a preferred floor. If the output still misses
+ * at that floor, the image is downscaled again by the measured overshoot instead of pushing the
+ * quality towards the absolute minimum, which is reserved for the last pass.
+ */
+public class CompressionPlanner {
+
+    private static final String TAG = "CompressionPlanner";
+
+    private static final int PREFERRED_MIN_QUALITY = 60; // Below this, downscaling looks better than more quality loss
+    private static final double REPLAN_HEADROOM = 0.9; // Aim under the budget when replanning from a measured size
+    private static final int MIN_DIMENSION = 64;
+    static final int MAX_PASSES = 3;
+
+    /**
+     * The output size and the quality floor for one compression pass.
+     */
+    public static class Plan {
+        private final int width;
+        private final int height;
+        private final int minQuality;
+        private final int pass;
+
+        Plan(int width, int height, int minQuality, int pass) {
+            this.width = width;
+            this.height = height;
+            this.minQuality = minQuality;
+            this.pass = pass;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getMinQuality() {
+            return minQuality;
+        }
+
+        /**
+         * @return The number of the pass, starting at 1.
+         */
+        public int getPass() {
+            return pass;
+        }
+
+        @Override
+        public String toString() {
+            return "pass " + pass + ": " + width + "x" + height + ", quality >= " + minQuality;
+        }
+    }
+
+    private final long targetSizeBytes;
+    private final int maxDimension;
+    private final int minQuality;
+    private final double bytesPerPixel;
+
+    /**
+     * @param targetSizeBytes The maximum size of the compressed image in bytes.
+     * @param maxDimension    The maximum width or height of the compressed image.
+     * @param minQuality      The absolute quality floor, only used on the last pass.
+     * @param bytesPerPixel   The expected compressed size per pixel, see {@link OutputFormat#getBytesPerPixel()}.
+     */
+    public CompressionPlanner(long targetSizeBytes, int maxDimension, int minQuality, double bytesPerPixel) {
+        this.targetSizeBytes = targetSizeBytes;
+        this.maxDimension = maxDimension;
+        this.minQuality = minQuality;
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    /**
+     * Plans the first pass for a source of the given size.
+     */
+    public Plan plan(int sourceWidth, int sourceHeight) {
+        double pixels = (double) sourceWidth * sourceHeight;
+        double maxPixels = targetSizeBytes / bytesPerPixel;
+        double scale = Math.min(1.0, Math.min(
+                Math.min((double) maxDimension / sourceWidth, (double) maxDimension / sourceHeight),
+                Math.sqrt(maxPixels / pixels)));
+        Plan plan = new Plan(scaled(sourceWidth, scale), scaled(sourceHeight, scale), qualityFloor(1), 1);
+        Log.d(TAG, "Planned " + sourceWidth + "x" + sourceHeight + " for " + targetSizeBytes + " bytes, " + plan);
+        return plan;
+    }
+
+    /**
+     * @return The largest pixel count a first pass is planned at, whatever the source: the budget
+     * at the expected bytes per pixel, or a square at the maximum dimension if that is fewer.
+     */
+    public long getMaxPlannedPixels() {
+        return (long) Math.min((double) maxDimension * maxDimension, targetSizeBytes / bytesPerPixel);
+    }
+
+    /**
+     * Plans another pass after the previous one missed the budget even at its quality floor.
+     *
+     * @param previous     The plan that missed.
+     * @param measuredSize The size the previous pass produced at its quality floor.
+     * @return The next plan, or null if there are no passes left.
+     */
+    public Plan replan(Plan previous, long measuredSize) {
+        if (previous.getPass() >= MAX_PASSES) {
+            return null;
+        }
+        // Size scales with the pixel count, so shrink both sides by the square root of the overshoot
+        double scale = Math.min(1.0, Math.sqrt(targetSizeBytes * REPLAN_HEADROOM / measuredSize));
+        int width = scaled(previous.getWidth(), scale);
+        int height = scaled(previous.getHeight(), scale);
+        if (width == previous.getWidth() && height == previous.getHeight()) {
+            return null;
+        }
+        int pass = previous.getPass() + 1;
+        Plan plan = new Plan(width, height, qualityFloor(pass), pass);
+        Log.d(TAG, "Replanned after " + measuredSize + " bytes, " + plan);
+        return plan;
+    }
+
+    private int qualityFloor(int pass) {
+        return pass >= MAX_PASSES ? minQuality : Math.max(minQuality, PREFERRED_MIN_QUALITY);
+    }
+
+    private static int scaled(int dimension, double scale) {
+        return Math.max(Math.min(dimension, MIN_DIMENSION), (int) Math.round(dimension * scale));
+    }
+}
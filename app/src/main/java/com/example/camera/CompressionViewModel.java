@@ -0,0 +1,152 @@
+package com.example.camera;
+
+import android.app.Application;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.AndroidViewModel;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Owns the compression jobs of the compressor screen, keyed by source URI, and its batch across
+ * configuration changes. A recreated activity gets the job or batch that is running or finished
+ * instead of starting it over; when the screen is left for good every job is cancelled before
+ * its next encode and the batch between images.
+ */
+public class CompressionViewModel extends AndroidViewModel {
+
+    /**
+     * Progress of the batch, and its summary once it has finished.
+     */
+    public static class BatchState {
+        private final int completed;
+        private final int failed;
+        private final int total;
+        private final int poolSize;
+        private final BatchCompressor.Summary summary;
+
+        BatchState(int completed, int failed, int total, int poolSize, BatchCompressor.Summary summary) {
+            this.completed = completed;
+            this.failed = failed;
+            this.total = total;
+            this.poolSize = poolSize;
+            this.summary = summary;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        /**
+         * @return The totals of the batch, or null while it is running.
+         */
+        public BatchCompressor.Summary getSummary() {
+            return summary;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new CameraThreads.NamedThreadFactory("Compression"));
+    private final Map<String, CompressionJob> jobs = new HashMap<>(); // Only touched on the main thread
+    private final MutableLiveData<BatchState> batchState = new MutableLiveData<>();
+    private BatchCompressor batchCompressor; // Only touched on the main thread, null until a batch is started
+
+    public CompressionViewModel(@NonNull Application application) {
+        super(application);
+    }
+
+    /**
+     * Returns the job compressing the image, starting it unless one is already running or
+     * finished. A failed or cancelled job is started again.
+     *
+     * @param compressionPipeline Decodes and compresses the image, if a job has to be started.
+     * @param imageUri            The URI of the image to be compressed, or null for a capture that was handed off.
+     * @param captureId           The ID of the capture, which keys the job, or null to just read the URI,
+     *                            which then keys it.
+     * @param originalName        The display name the original of the capture is saved under, or null.
+     * @param imageDetails        The details of the original image.
+     * @param previewWidth        The width previews are decoded at.
+     * @param previewHeight       The height previews are decoded at.
+     * @return The job, whose state can be observed.
+     */
+    public CompressionJob compress(CompressionPipeline compressionPipeline, Uri imageUri, String captureId,
+                                   String originalName, String imageDetails, int previewWidth, int previewHeight) {
+        String key = captureId != null ? captureId : imageUri.toString();
+        CompressionJob job = jobs.get(key);
+        if (job == null || !job.isReusable()) {
+            job = new CompressionJob(getApplication(), compressionPipeline, imageUri, captureId, originalName,
+                    imageDetails, previewWidth, previewHeight);
+            jobs.put(key, job);
+            job.start(executor);
+        }
+        return job;
+    }
+
+    /**
+     * Starts compressing the images as a batch, unless this view model already has one, running
+     * or finished. The outputs are saved from the workers, so nothing refers to the activity.
+     *
+     * @param compressionPipeline Decodes and compresses each image, if the batch has to be started.
+     * @param imageUris           The URIs of the images to be compressed.
+     * @return The progress of the batch, which can be observed.
+     */
+    public LiveData<BatchState> compressBatch(CompressionPipeline compressionPipeline, List<Uri> imageUris) {
+        if (batchCompressor != null) {
+            return batchState;
+        }
+        final Application application = getApplication();
+        final BatchCompressor compressor = new BatchCompressor(application.getContentResolver(), compressionPipeline);
+        final int poolSize = compressor.getPoolSize();
+        batchCompressor = compressor;
+        batchState.setValue(new BatchState(0, 0, imageUris.size(), poolSize, null));
+        compressor.start(imageUris, new BatchCompressor.Listener() {
+            @Override
+            public void onImageCompressed(Uri source, ImageCompressor.Result result) throws IOException {
+                CompressionJob.enqueueCompressedImage(application, compressionPipeline.getFormat(), result, null);
+            }
+
+            @Override
+            public void onProgress(int completed, int failed, int total) {
+                batchState.postValue(new BatchState(completed, failed, total, poolSize, null));
+            }
+
+            @Override
+            public void onFinished(BatchCompressor.Summary summary) {
+                batchState.postValue(new BatchState(summary.getSucceeded(), summary.getFailed(), summary.getTotal(),
+                        poolSize, summary));
+            }
+        });
+        return batchState;
+    }
+
+    @Override
+    protected void onCleared() {
+        for (CompressionJob job : jobs.values()) {
+            job.cancel();
+        }
+        jobs.clear();
+        if (batchCompressor != null) {
+            batchCompressor.cancel(); // Stop between images once the user leaves
+        }
+        executor.shutdown();
+    }
+}
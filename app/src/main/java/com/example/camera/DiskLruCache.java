@@ -0,0 +1,462 @@
+package com.example.camera;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Size-bounded LRU cache of capture intermediates in the cache directory, such as raw captures
+ * waiting to be compressed and saved compressed outputs.
+ * <p>
+ * The entries, their sizes and their access order live in a line journal, so opening the cache
+ * reads one file instead of listing the directory. Opening, eviction and journal compaction run
+ * on a background thread; {@link #get} and {@link #put} wait for the open to finish, so they must
+ * not be called on the main thread either.
+ * <p>
+ * Entries are read through a {@link Snapshot}, which holds the file open: an entry evicted,
+ * removed or replaced while it is read is unlinked from the directory, but the snapshot keeps
+ * reading the bytes it opened.
+ */
+public class DiskLruCache {
+
+    private static final String TAG = "DiskLruCache";
+
+    private static final String DIR_NAME = "intermediates";
+    private static final String JOURNAL_NAME = "journal";
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+    private static final int COMPACT_THRESHOLD = 2000; // Redundant journal lines before it is rewritten
+
+    // Journal records: DIRTY <file> before a write, PUT <file> <size> after it, READ <file>, REMOVE <file>
+    private static final String DIRTY = "DIRTY";
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    /**
+     * An open entry. Each {@link #newInputStream()} reads it from the start, so it can be decoded
+     * more than once; closing the snapshot closes them all.
+     */
+    public static final class Snapshot implements Closeable {
+        private final FileInputStream input;
+        private final long length;
+
+        private Snapshot(FileInputStream input, long length) {
+            this.input = input;
+            this.length = length;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        /**
+         * @return A stream over the entry from its first byte. Closing it does nothing; close the snapshot.
+         */
+        public InputStream newInputStream() {
+            FileChannel channel = input.getChannel();
+            return new InputStream() {
+                private long position;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    if (count == 0) {
+                        return 0;
+                    }
+                    try {
+                        // Positional, so streams of the same snapshot do not move each other
+                        int read = channel.read(ByteBuffer.wrap(buffer, offset, count), position);
+                        if (read > 0) {
+                            position += read;
+                        }
+                        return read;
+                    } catch (ClosedByInterruptException e) {
+                        throw new InterruptedIOException("Interrupted reading a cache entry");
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    private static DiskLruCache instance;
+
+    private final File directory;
+    private final File journalFile;
+    private final long maxBytes;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new CameraThreads.NamedThreadFactory("DiskCache"));
+    private final CountDownLatch opened = new CountDownLatch(1);
+    private final AtomicBoolean trimScheduled = new AtomicBoolean();
+
+    // File name to size, in access order; all guarded by this
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private int redundantRecords;
+    private Writer journal;
+    private long hits;
+    private long misses;
+
+    /**
+     * @return The cache, opening it in the background on first use.
+     */
+    public static synchronized DiskLruCache getInstance(Context context) {
+        if (instance == null) {
+            instance = create(new File(context.getApplicationContext().getCacheDir(), DIR_NAME), MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * @return A cache in the directory, opening it in the background.
+     */
+    static DiskLruCache create(File directory, long maxBytes) {
+        DiskLruCache cache = new DiskLruCache(directory, maxBytes);
+        cache.executor.execute(cache::open);
+        return cache;
+    }
+
+    DiskLruCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_NAME);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens an entry. It is opened with the lock held, so it cannot be evicted or removed
+     * between being looked up and being opened.
+     *
+     * @return The open entry, to be closed by the caller, or null if it is not cached.
+     */
+    public Snapshot get(String key) {
+        awaitOpen();
+        String name = fileName(key);
+        synchronized (this) {
+            Long length = entries.get(name);
+            if (length == null) {
+                misses++;
+                return null;
+            }
+            FileInputStream input;
+            try {
+                input = new FileInputStream(new File(directory, name));
+            } catch (FileNotFoundException e) {
+                // Deleted behind our back, e.g. by the system clearing the cache directory
+                size -= entries.remove(name);
+                appendJournal(REMOVE + " " + name);
+                misses++;
+                return null;
+            }
+            hits++;
+            appendJournal(READ + " " + name);
+            if (++redundantRecords > COMPACT_THRESHOLD) {
+                scheduleTrim(); // Compacts the journal too
+            }
+            return new Snapshot(input, length);
+        }
+    }
+
+    /**
+     * Writes an entry, replacing any previous one, and schedules eviction if the cache is over
+     * its budget.
+     *
+     * @param data The bytes, from their position to their limit. The buffer is not modified.
+     * @return The file of the entry.
+     */
+    public File put(String key, ByteBuffer data) throws IOException {
+        awaitOpen();
+        String name = fileName(key);
+        File file = new File(directory, name);
+        File temporary = new File(directory, name + ".tmp");
+        synchronized (this) {
+            appendJournal(DIRTY + " " + name);
+        }
+        try (FileOutputStream output = new FileOutputStream(temporary);
+             FileChannel channel = output.getChannel()) {
+            ByteBuffer buffer = data.duplicate();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            // Including a ClosedByInterruptException; the DIRTY record is dropped on the next open
+            temporary.delete();
+            throw e;
+        }
+
+        long length = temporary.length();
+        boolean overBudget;
+        synchronized (this) {
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+                throw new IOException("Unable to write " + file);
+            }
+            Long previous = entries.put(name, length);
+            size += length - (previous != null ? previous : 0);
+            if (previous != null) {
+                redundantRecords++;
+            }
+            appendJournal(PUT + " " + name + " " + length);
+            overBudget = size > maxBytes;
+        }
+        if (overBudget) {
+            scheduleTrim();
+        }
+        return file;
+    }
+
+    /**
+     * Removes an entry that is no longer needed, e.g. a raw capture once it is compressed.
+     */
+    public void remove(String key) {
+        awaitOpen();
+        String name = fileName(key);
+        synchronized (this) {
+            Long length = entries.remove(name);
+            if (length == null) {
+                return;
+            }
+            size -= length;
+            redundantRecords++;
+            appendJournal(REMOVE + " " + name);
+            new File(directory, name).delete();
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d entries, %d/%d KB, %d hits, %d misses",
+                entries.size(), size / 1024, maxBytes / 1024, hits, misses);
+    }
+
+    /**
+     * Rebuilds the index from the journal and drops writes that never finished. Runs on the
+     * cache thread.
+     */
+    private void open() {
+        try {
+            synchronized (this) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Unable to create " + directory);
+                }
+                Set<String> dirty = new HashSet<>();
+                int records = 0;
+                if (journalFile.isFile()) {
+                    try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            records++;
+                            String[] fields = line.split(" ");
+                            if (fields.length < 2) {
+                                continue;
+                            }
+                            String name = fields[1];
+                            if (DIRTY.equals(fields[0])) {
+                                dirty.add(name);
+                            } else if (PUT.equals(fields[0]) && fields.length == 3) {
+                                dirty.remove(name);
+                                Long previous = entries.put(name, Long.parseLong(fields[2]));
+                                size += Long.parseLong(fields[2]) - (previous != null ? previous : 0);
+                            } else if (READ.equals(fields[0])) {
+                                entries.get(name); // Moves it to the most recently used end
+                            } else if (REMOVE.equals(fields[0])) {
+                                Long previous = entries.remove(name);
+                                size -= previous != null ? previous : 0;
+                            }
+                        }
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Corrupt journal, starting empty", e);
+                        clear();
+                    }
+                }
+                for (String name : dirty) {
+                    if (!entries.containsKey(name)) {
+                        new File(directory, name).delete();
+                    }
+                    new File(directory, name + ".tmp").delete();
+                }
+                redundantRecords = records - entries.size();
+                if (redundantRecords > COMPACT_THRESHOLD || !dirty.isEmpty()) {
+                    compactJournal();
+                }
+            }
+            Log.d(TAG, "Opened: " + this);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening the cache, starting empty", e);
+            synchronized (this) {
+                clear();
+            }
+        } finally {
+            opened.countDown();
+        }
+        trim();
+    }
+
+    private void scheduleTrim() {
+        if (trimScheduled.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                trimScheduled.set(false);
+                trim();
+            });
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits its budget. Runs on the cache thread.
+     */
+    private synchronized void trim() {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            evicted.add(eldest.getKey());
+        }
+        for (String name : evicted) {
+            appendJournal(REMOVE + " " + name);
+            new File(directory, name).delete();
+        }
+        redundantRecords += evicted.size();
+        if (!evicted.isEmpty()) {
+            Log.d(TAG, "Evicted " + evicted.size() + " entries: " + this);
+        }
+        if (redundantRecords > COMPACT_THRESHOLD) {
+            compactJournal();
+        }
+    }
+
+    /**
+     * Rewrites the journal with one PUT per entry, in access order. Called with the lock held.
+     */
+    private void compactJournal() {
+        File compacted = new File(directory, JOURNAL_NAME + ".tmp");
+        try {
+            closeJournal();
+            try (Writer writer = new BufferedWriter(new FileWriter(compacted))) {
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    writer.write(PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+                }
+            }
+            if (!compacted.renameTo(journalFile)) {
+                throw new IOException("Unable to replace " + journalFile);
+            }
+            redundantRecords = 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Error compacting the journal", e);
+        }
+    }
+
+    /**
+     * Forgets every entry and deletes the journal. Files left behind are orphaned in the cache
+     * directory, where the system reclaims them. Called with the lock held.
+     */
+    private void clear() {
+        entries.clear();
+        size = 0;
+        redundantRecords = 0;
+        try {
+            closeJournal();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing the journal", e);
+        }
+        journalFile.delete();
+    }
+
+    /**
+     * Appends a record, flushed so it survives the process dying. Called with the lock held.
+     */
+    private void appendJournal(String line) {
+        try {
+            if (journal == null) {
+                journal = new BufferedWriter(new FileWriter(journalFile, true));
+            }
+            journal.write(line + "\n");
+            journal.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing the journal", e);
+        }
+    }
+
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private void awaitOpen() {
+        // The entries are not safe to use before the open finishes, so an interrupt is only
+        // passed on once it has
+        boolean interrupted = false;
+        while (true) {
+            try {
+                opened.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A file name for the key: the SHA-1 of the key in hex, so any string can be a key.
+     */
+    static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(String.format(Locale.US, "%02x", b));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Android device has SHA-1
+        }
+    }
+}
@@ -1,26 +1,22 @@
 package com.example.camera;
 
-import android.content.ContentValues;
-import android.graphics.BitmapFactory;
-import android.media.MediaScannerConnection;
+import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import androidx.activity.EdgeToEdge;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.ViewModelProvider;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
-import android.graphics.Bitmap;
 import android.widget.Toast;
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import android.widget.ProgressBar;
 public class ImgCompressorActivity extends AppCompatActivity {
@@ -28,14 +24,69 @@ public class ImgCompressorActivity extends AppCompatActivity {
     private ImageView compressedImageView;
     private TextView compressedImageInfoTextView;
     private ProgressBar progressBar; // Spinner to show progress
-    private Bitmap originalBitmap; // Keep reference for cleanup
 
     // Constants for image compression
-    private static final int INITIAL_QUALITY = 100; // Initial quality
-    private static final int MIN_QUALITY = 10; // Minimum quality before stopping compression
-    private static final int MAX_COMPRESSED_SIZE_MB = 6; // Maximum size in MB
-    private static final int MAX_COMPRESSED_SIZE_BYTES = MAX_COMPRESSED_SIZE_MB * 1024 * 1024; // Maximum size in bytes
-    private static final int QUALITY_DECREMENT = 5; // Quality decrement in each iteration
+    static final int MIN_QUALITY = 10; // Minimum quality before stopping compression
+    static final int MAX_COMPRESSED_SIZE_MB = 6; // Maximum size in MB
+    static final int MAX_COMPRESSED_SIZE_BYTES = MAX_COMPRESSED_SIZE_MB * 1024 * 1024; // Maximum size in bytes
+    static final ImageCompressor.Strategy COMPRESSION_STRATEGY = ImageCompressor.Strategy.PREDICT; // How the quality is chosen
+    static final OutputFormat OUTPUT_FORMAT = OutputFormat.JPEG; // Default format, overridden by the "output_format" extra
+
+    // Limits for decoding the original image, so peak memory follows the output size and not the sensor size
+    static final int MAX_OUTPUT_DIMENSION = 4096; // Maximum width or height of the compressed image in px
+    static final long MAX_DECODE_BYTES = Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4); // Maximum size of the decode in bytes, tiled above it
+
+    /**
+     * @return The decode, plan and compress pipeline shared by the single-image, burst and batch paths.
+     */
+    static CompressionPipeline createCompressionPipeline() {
+        return createCompressionPipeline(OUTPUT_FORMAT);
+    }
+
+    /**
+     * @param format The format to write, replaced by JPEG if this device cannot encode it.
+     * @return The pipeline writing that format.
+     */
+    static CompressionPipeline createCompressionPipeline(OutputFormat format) {
+        if (!format.isSupported()) {
+            Log.w("ImageError", format + " is not supported on this device, using " + OutputFormat.JPEG);
+            format = OutputFormat.JPEG;
+        }
+        return new CompressionPipeline(MAX_COMPRESSED_SIZE_BYTES, MIN_QUALITY, MAX_OUTPUT_DIMENSION, MAX_DECODE_BYTES, COMPRESSION_STRATEGY, format);
+    }
+
+    // Exported alias other apps share images through; see isFromShareTarget
+    private static final String SHARE_TARGET = ImgCompressorActivity.class.getPackage().getName() + ".ShareTargetActivity";
+
+    /**
+     * Tells images shared by other apps apart from the app's own requests. Only the alias is
+     * exported, so the internal extras, which can name any URI or capture, are only trusted when
+     * the activity was not started through it.
+     *
+     * @return Whether the intent came in through the exported share target.
+     */
+    private static boolean isFromShareTarget(Intent intent) {
+        return intent.getComponent() != null && SHARE_TARGET.equals(intent.getComponent().getClassName());
+    }
+
+    /**
+     * @return The format named in the "output_format" extra, or {@link #OUTPUT_FORMAT} if there is none or it is unknown.
+     */
+    private static OutputFormat getOutputFormat(Intent intent) {
+        String name = intent.getStringExtra("output_format");
+        if (name != null) {
+            try {
+                return OutputFormat.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                Log.w("ImageError", "Unknown output format: " + name);
+            }
+        }
+        return OUTPUT_FORMAT;
+    }
+
+    private CompressionPipeline compressionPipeline; // Set in onCreate, once the requested format is known
+    private CompressionJob.Status lastJobStatus; // Last state shown by this activity, null before the first
+    private boolean batchRunning; // Whether this activity has shown the batch running
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -51,121 +102,161 @@ public class ImgCompressorActivity extends AppCompatActivity {
         compressedImageView = findViewById(R.id.compressedImage);
         compressedImageInfoTextView = findViewById(R.id.compressedImageInfoTextView);
         progressBar = findViewById(R.id.progressBar); // Initialize the ProgressBar
+        boolean shared = isFromShareTarget(getIntent());
+        compressionPipeline = createCompressionPipeline(shared ? OUTPUT_FORMAT : getOutputFormat(getIntent()));
 
-        String imageUriString = getIntent().getStringExtra("image_uri");
-        String image_details = getIntent().getStringExtra("image_details");
+        // Shared images come in EXTRA_STREAM only, the other extras are internal
+        String imageUriString = shared ? null : getIntent().getStringExtra("image_uri");
+        String image_details = shared ? null : getIntent().getStringExtra("image_details");
+        String captureId = shared ? null : getIntent().getStringExtra("capture_id");
+        String originalName = shared ? null : getIntent().getStringExtra("original_name");
 
-        if (imageUriString != null) {
-            Uri imageUri = Uri.parse(imageUriString);
+        List<Uri> batchUris = getBatchUris(getIntent());
+        if (!batchUris.isEmpty()) {
+            compressBatch(batchUris);
+        } else if (imageUriString != null || captureId != null) {
+            // A capture handed off in memory or in the disk cache comes without a URI
+            Uri imageUri = imageUriString != null ? Uri.parse(imageUriString) : null;
             Log.e("ImageError", "Error loading or compressing image: " + imageUri);
-            compressAndDisplayImage(imageUri, image_details);
+            compressAndDisplayImage(imageUri, captureId, originalName, image_details);
         }
     }
 
     /**
-     * Compresses the image and displays the compressed image along with its details.
+     * Collects the images to compress as a batch, either shared from another app or passed in the
+     * "image_uris" extra, which is ignored when the intent came through the share target.
      *
-     * @param imageUri      The URI of the image to be compressed.
-     * @param image_details The details of the original image.
+     * @param intent The intent the activity was started with.
+     * @return The URIs of the images, empty if this is not a batch.
      */
-    private void compressAndDisplayImage(Uri imageUri, String image_details) {
-        clearCache(); // Clear cache before starting
-        runOnUiThread(() -> progressBar.setVisibility(View.VISIBLE)); // Show the spinner
+    private List<Uri> getBatchUris(Intent intent) {
+        List<Uri> uris = new ArrayList<>();
+        if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+            ArrayList<Uri> shared = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+            if (shared != null) {
+                uris.addAll(shared);
+            }
+        }
+        ArrayList<String> uriStrings = isFromShareTarget(intent) ? null : intent.getStringArrayListExtra("image_uris");
+        if (uriStrings != null) {
+            for (String uriString : uriStrings) {
+                uris.add(Uri.parse(uriString));
+            }
+        }
+        return uris;
+    }
 
-        new Thread(() -> {
-            try {
-                // Open the InputStream of the original image
-                InputStream inputStream = getContentResolver().openInputStream(imageUri);
-                originalBitmap = BitmapFactory.decodeStream(inputStream);
-                inputStream.close();
-
-                // Compress the image until it is less than MAX_COMPRESSED_SIZE_MB
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                int quality = INITIAL_QUALITY; // Starting quality
-                originalBitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-
-                // Compression loop until the image size is less than MAX_COMPRESSED_SIZE_MB
-                while (baos.toByteArray().length > MAX_COMPRESSED_SIZE_BYTES && quality > MIN_QUALITY) {
-                    baos.reset(); // Clear the output stream
-                    quality -= QUALITY_DECREMENT; // Reduce quality
-                    originalBitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-                }
-
-                // Convert the result to a Bitmap
-                byte[] compressedBytes = baos.toByteArray();
-                Bitmap compressedBitmap = BitmapFactory.decodeByteArray(compressedBytes, 0, compressedBytes.length);
-
-                // Calculate the size of the compressed image in KB
-                int compressedSizeInKB = compressedBytes.length / 1024;
-
-                runOnUiThread(() -> {
-                    compressedImageView.setImageBitmap(compressedBitmap);
-
-                    // Display the properties of the original and compressed images
-                    String details = "Original Image:\n" +
-                            image_details +
-                            "\n" +
-                            "Compressed Image:\n" +
-                            "Width: " + compressedBitmap.getWidth() + " px\n" +
-                            "Height: " + compressedBitmap.getHeight() + " px\n" +
-                            "Size: " + compressedSizeInKB + " KB";
-                    compressedImageInfoTextView.setText(details);
-                    compressedImageInfoTextView.setVisibility(View.VISIBLE);
-                    saveCompressedImage(compressedBytes);
-                });
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                runOnUiThread(() -> Toast.makeText(this, "Error loading or compressing image", Toast.LENGTH_SHORT).show());
-            } finally {
-                clearCache();
-                runOnUiThread(() -> {
-                    progressBar.setVisibility(View.GONE); // Hide the spinner
-                });
+    /**
+     * Compresses a batch of images across a worker pool, showing the progress and a final summary.
+     * The batch runs in the view model, so after a rotation this reattaches to it instead of
+     * starting it again.
+     *
+     * @param imageUris The URIs of the images to be compressed.
+     */
+    private void compressBatch(List<Uri> imageUris) {
+        CompressionViewModel viewModel = new ViewModelProvider(this).get(CompressionViewModel.class);
+        viewModel.compressBatch(compressionPipeline, imageUris).observe(this, this::showBatchState);
+    }
+
+    /**
+     * Shows the progress of the batch, or its summary once it has finished. The toast is only
+     * shown if this activity saw the batch finish.
+     */
+    private void showBatchState(CompressionViewModel.BatchState state) {
+        BatchCompressor.Summary summary = state.getSummary();
+        compressedImageInfoTextView.setVisibility(View.VISIBLE);
+        if (summary == null) {
+            progressBar.setVisibility(View.VISIBLE); // Show the spinner
+            compressedImageInfoTextView.setText(state.getCompleted() + state.getFailed() == 0
+                    ? "Compressing " + state.getTotal() + " images on " + state.getPoolSize() + " workers"
+                    : "Compressed " + state.getCompleted() + "/" + state.getTotal() + " images (" + state.getFailed() + " failed)");
+        } else {
+            compressedImageInfoTextView.setText("Batch:\n" + summary);
+            progressBar.setVisibility(View.GONE); // Hide the spinner
+            if (batchRunning) {
+                Toast.makeText(this, "Compressed " + summary.getSucceeded() + " images", Toast.LENGTH_SHORT).show();
             }
-        }).start();
+        }
+        batchRunning = summary == null;
     }
 
     /**
-     * Saves the compressed image to the device's storage.
+     * Compresses the image and displays the compressed image along with its details. The work
+     * runs in a {@link CompressionJob} of the view model, so after a rotation this reattaches to
+     * the job instead of starting it again.
      *
-     * @param compressedBytes The byte array of the compressed image.
+     * @param imageUri      The URI of the image to be compressed, or null if it is a capture that was handed off.
+     * @param captureId     The ID of the capture, under which its bytes may have been handed off and its
+     *                      stages are timed, or null to just read the URI.
+     * @param originalName  The display name the original of the capture is saved under, or null.
+     * @param image_details The details of the original image.
      */
-    private void saveCompressedImage(byte[] compressedBytes) {
-        new Thread(() -> {
-            try {
-                String name = "IMG_COMPRESSED_" + System.currentTimeMillis() + ".jpg";
-                Uri uri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-                ContentValues values = new ContentValues();
-                values.put(MediaStore.Images.Media.DISPLAY_NAME, name);
-                values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
-                Uri imageUri = getContentResolver().insert(uri, values);
-
-                FileOutputStream output = new FileOutputStream(getContentResolver().openFileDescriptor(imageUri, "w").getFileDescriptor());
-                output.write(compressedBytes);
-                output.close();
-
-                MediaScannerConnection.scanFile(this, new String[]{imageUri.toString()}, null, null);
-
-                runOnUiThread(() -> {
-                    Toast.makeText(this, "Compressed image saved: " + name, Toast.LENGTH_SHORT).show();
-                    progressBar.setVisibility(View.GONE);
-                });
-            } catch (IOException e) {
-                e.printStackTrace();
-                runOnUiThread(() -> Toast.makeText(this, "Error saving compressed image", Toast.LENGTH_SHORT).show());
+    private void compressAndDisplayImage(Uri imageUri, String captureId, String originalName, String image_details) {
+        int[] previewSize = getPreviewSize();
+        CompressionViewModel viewModel = new ViewModelProvider(this).get(CompressionViewModel.class);
+        CompressionJob job = viewModel.compress(compressionPipeline, imageUri, captureId, originalName, image_details,
+                previewSize[0], previewSize[1]);
+        job.getState().observe(this, this::showJobState);
+    }
+
+    /**
+     * Shows the latest state of the compression job. Toasts are only shown for changes seen by
+     * this activity, not again for a state it reattached to.
+     */
+    private void showJobState(CompressionJob.State state) {
+        CompressionJob.Status status = state.getStatus();
+        progressBar.setVisibility(status == CompressionJob.Status.RUNNING ? View.VISIBLE : View.GONE);
+        if (state.getPreview() != null) {
+            compressedImageView.setImageBitmap(state.getPreview());
+        }
+        if (state.getDetails() != null) {
+            compressedImageInfoTextView.setText(state.getDetails());
+            compressedImageInfoTextView.setVisibility(View.VISIBLE);
+        }
+
+        if (lastJobStatus != null && lastJobStatus != status) {
+            switch (status) {
+                case SAVED:
+                    Toast.makeText(this, "Compressed image saved: " + state.getSavedName(), Toast.LENGTH_SHORT).show();
+                    break;
+                case SAVE_FAILED:
+                    Toast.makeText(this, "Error saving compressed image", Toast.LENGTH_SHORT).show();
+                    break;
+                case FAILED:
+                    Toast.makeText(this, "Error loading or compressing image", Toast.LENGTH_SHORT).show();
+                    break;
+                default:
+                    break;
             }
-        }).start();
+        }
+        lastJobStatus = status;
     }
 
     /**
-     * Clears the cache by recycling the original bitmap if it exists.
+     * @return The disk cache key of a capture that did not fit the handoff store.
      */
-    private void clearCache() {
-        if (originalBitmap != null) {
-            originalBitmap.recycle();
-            originalBitmap = null;
+    static String rawCaptureKey(String captureId) {
+        return "raw:" + captureId;
+    }
+
+    /**
+     * Works out the size previews are decoded at: the measured size of the image view, or the
+     * size it is laid out with if it has not been measured yet.
+     *
+     * @return The width and height in pixels.
+     */
+    private int[] getPreviewSize() {
+        int width = compressedImageView.getWidth();
+        int height = compressedImageView.getHeight();
+        if (width <= 0 || height <= 0) {
+            width = compressedImageView.getLayoutParams().width;
+            height = compressedImageView.getLayoutParams().height;
+        }
+        if (width <= 0 || height <= 0) {
+            // Match or wrap content before layout: fall back to the screen size
+            width = getResources().getDisplayMetrics().widthPixels;
+            height = getResources().getDisplayMetrics().heightPixels;
         }
+        return new int[]{width, height};
     }
 }
-
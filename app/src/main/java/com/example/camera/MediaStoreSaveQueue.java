@@ -0,0 +1,560 @@
+package com.example.camera;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind queue for images going to MediaStore, which survives the process dying.
+ * <p>
+ * On API 29+ {@link #enqueue} inserts the image with {@code IS_PENDING} set, journals the URI of
+ * the row and writes the bytes straight into it on the calling thread, so they are written once
+ * and the caller can release its buffer as soon as it returns. The pending row itself is what
+ * survives the process: it stays hidden from other apps until finalized. Before API 29 there is
+ * no pending state, so the bytes are spooled to app storage instead and a bounded executor
+ * inserts and copies them, keeping half-written files out of the gallery.
+ * <p>
+ * Written images are finalized in batches: one {@code applyBatch} clears {@code IS_PENDING} for
+ * all of them, and before API 29 one media scan covers the whole batch. On the next start, every
+ * journaled image that was not finalized is finalized if it was fully written, published again
+ * from its spool if it has one, and dropped otherwise.
+ * <p>
+ * The journal is flushed to the kernel after every line but not synced, which is enough to
+ * survive the process being killed, not a power loss.
+ */
+public class MediaStoreSaveQueue {
+
+    private static final String TAG = "MediaStoreSaveQueue";
+
+    private static final String SPOOL_DIR_NAME = "save_queue";
+    private static final String JOURNAL_NAME = "journal";
+    private static final int PUBLISH_THREADS = 1; // The media provider serializes inserts anyway
+    private static final int PUBLISH_QUEUE_CAPACITY = 16; // Spooled images waiting for MediaStore
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int FINALIZE_BATCH_SIZE = 8;
+
+    // Journal records: ADD <id> <mime type> <display name>, URI <id> <uri>, WRITTEN <id>, DONE <id>
+    private static final String ADD = "ADD";
+    private static final String URI = "URI";
+    private static final String WRITTEN = "WRITTEN";
+    private static final String DONE = "DONE";
+
+    /**
+     * Receives the outcome of a save. Called on a save thread.
+     */
+    public interface Listener {
+        /**
+         * The image is written. On API 29+ it stays pending, i.e. only visible to this app,
+         * until its batch is finalized.
+         */
+        void onSaved(String displayName, Uri uri);
+
+        void onFailed(String displayName, IOException e);
+    }
+
+    private static class Entry {
+        final String id;
+        final String displayName;
+        final String mimeType;
+        final File spool;
+        final Listener listener;
+        Uri uri;
+        boolean written; // Written straight into its row, which only needs finalizing
+
+        Entry(String id, String displayName, String mimeType, File spool, Listener listener) {
+            this.id = id;
+            this.displayName = displayName;
+            this.mimeType = mimeType;
+            this.spool = spool;
+            this.listener = listener;
+        }
+    }
+
+    private static MediaStoreSaveQueue instance;
+
+    private final Context context;
+    private final ContentResolver contentResolver;
+    private final File spoolDir;
+    private final File journalFile;
+    private final ThreadPoolExecutor executor;
+
+    private Writer journal; // Guarded by the journal file
+    private final Set<String> liveIds = Collections.synchronizedSet(new HashSet<>()); // Enqueued by this process
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final List<Entry> written = new ArrayList<>(); // Written but not finalized
+
+    /**
+     * @return The queue, starting it and recovering unfinished saves on first use.
+     */
+    public static synchronized MediaStoreSaveQueue getInstance(Context context) {
+        if (instance == null) {
+            instance = new MediaStoreSaveQueue(context.getApplicationContext());
+            instance.executor.execute(instance::recover);
+        }
+        return instance;
+    }
+
+    private MediaStoreSaveQueue(Context context) {
+        this.context = context;
+        this.contentResolver = context.getContentResolver();
+        this.spoolDir = new File(context.getFilesDir(), SPOOL_DIR_NAME);
+        this.journalFile = new File(spoolDir, JOURNAL_NAME);
+        this.executor = new ThreadPoolExecutor(PUBLISH_THREADS, PUBLISH_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(PUBLISH_QUEUE_CAPACITY), new CameraThreads.NamedThreadFactory("MediaStoreSave"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Writes the image into a pending MediaStore row on API 29+, or spools it, and queues it to
+     * be finalized. Writes to storage on the calling thread, so it must not be called on the
+     * main thread.
+     *
+     * @param displayName The file name of the image.
+     * @param mimeType    The MIME type of the image.
+     * @param data        The encoded image, from its position to its limit. It is not modified and
+     *                    may be released once this returns.
+     * @param listener    Notified once the image is written, or null.
+     */
+    public void enqueue(String displayName, String mimeType, ByteBuffer data, Listener listener) throws IOException {
+        String id = UUID.randomUUID().toString();
+        Entry entry = new Entry(id, displayName, mimeType, new File(spoolDir, id), listener);
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+            throw new IOException("Unable to create " + spoolDir);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            writeDirect(entry, data);
+            return;
+        }
+        try (FileOutputStream output = new FileOutputStream(entry.spool);
+             FileChannel channel = output.getChannel()) {
+            ByteBuffer buffer = data.duplicate();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            // Not journaled yet, so nothing else would ever delete the partial spool
+            entry.spool.delete();
+            throw e;
+        }
+        liveIds.add(id);
+        appendJournal(ADD + " " + id + " " + mimeType + " " + displayName);
+        submit(entry);
+    }
+
+    /**
+     * Looks up an image saved by this app by its display name, including a row that is still
+     * pending, e.g. to read a capture from storage once its other copies are gone.
+     *
+     * @return The URI of the image, or null if there is none.
+     */
+    @SuppressWarnings("deprecation") // setIncludePending is the only way on API 29
+    public Uri findSaved(String displayName) {
+        Uri collection = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+        String[] projection = {MediaStore.Images.Media._ID};
+        String selection = MediaStore.Images.Media.DISPLAY_NAME + " = ?";
+        String[] selectionArgs = {displayName};
+        Cursor cursor;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                Bundle queryArgs = new Bundle();
+                queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+                queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs);
+                queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
+                cursor = contentResolver.query(collection, projection, queryArgs, null);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                cursor = contentResolver.query(MediaStore.setIncludePending(collection), projection, selection, selectionArgs, null);
+            } else {
+                cursor = contentResolver.query(collection, projection, selection, selectionArgs, null);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to look up " + displayName, e);
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? ContentUris.withAppendedId(collection, cursor.getLong(0)) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void submit(Entry entry) {
+        inFlight.incrementAndGet();
+        executor.execute(() -> publish(entry));
+    }
+
+    /**
+     * Inserts a pending row, journals its URI and writes the image into it, then hands it to the
+     * executor to be reported and finalized. Runs on the calling thread.
+     */
+    private void writeDirect(Entry entry, ByteBuffer data) throws IOException {
+        liveIds.add(entry.id);
+        try {
+            appendJournal(ADD + " " + entry.id + " " + entry.mimeType + " " + entry.displayName);
+            insertPending(entry);
+            write(entry.uri, data);
+            entry.written = true;
+            appendJournal(WRITTEN + " " + entry.id);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error saving " + entry.displayName, e);
+            discard(entry);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        inFlight.incrementAndGet();
+        executor.execute(() -> {
+            if (entry.listener != null) {
+                entry.listener.onSaved(entry.displayName, entry.uri);
+            }
+            finishPublish(entry, true);
+        });
+    }
+
+    /**
+     * Inserts the MediaStore row of an image, pending on API 29+, and journals its URI.
+     */
+    private void insertPending(Entry entry) throws IOException {
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Images.Media.DISPLAY_NAME, entry.displayName);
+        values.put(MediaStore.Images.Media.MIME_TYPE, entry.mimeType);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            values.put(MediaStore.Images.Media.IS_PENDING, 1);
+        }
+        Uri uri = contentResolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+        if (uri == null) {
+            throw new IOException("MediaStore insert failed for " + entry.displayName);
+        }
+        entry.uri = uri;
+        appendJournal(URI + " " + entry.id + " " + uri);
+    }
+
+    /**
+     * Writes the bytes into a MediaStore row through a file channel, without an intermediate copy.
+     */
+    private void write(Uri uri, ByteBuffer data) throws IOException {
+        try (ParcelFileDescriptor descriptor = contentResolver.openFileDescriptor(uri, "w")) {
+            if (descriptor == null) {
+                throw new IOException("Unable to open " + uri);
+            }
+            try (FileOutputStream output = new FileOutputStream(descriptor.getFileDescriptor());
+                 FileChannel channel = output.getChannel()) {
+                ByteBuffer buffer = data.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts the image into MediaStore and copies its spool into it. Runs on the executor.
+     */
+    private void publish(Entry entry) {
+        boolean saved = false;
+        try {
+            insertPending(entry);
+            Uri uri = entry.uri;
+
+            try (ParcelFileDescriptor descriptor = contentResolver.openFileDescriptor(uri, "w")) {
+                if (descriptor == null) {
+                    throw new IOException("Unable to open " + uri);
+                }
+                try (FileOutputStream output = new FileOutputStream(descriptor.getFileDescriptor());
+                     FileChannel target = output.getChannel();
+                     FileInputStream input = new FileInputStream(entry.spool);
+                     FileChannel source = input.getChannel()) {
+                    long size = source.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, target);
+                    }
+                }
+            }
+            saved = true;
+            if (entry.listener != null) {
+                entry.listener.onSaved(entry.displayName, uri);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error saving " + entry.displayName, e);
+            discard(entry);
+            if (entry.listener != null) {
+                entry.listener.onFailed(entry.displayName, e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+        finishPublish(entry, saved);
+    }
+
+    /**
+     * Counts an image off and finalizes the written ones once a batch is full or nothing else is
+     * queued. Runs on the executor.
+     */
+    private void finishPublish(Entry entry, boolean saved) {
+        List<Entry> batch = null;
+        int remaining = inFlight.decrementAndGet();
+        synchronized (written) {
+            if (saved) {
+                written.add(entry);
+            }
+            if (!written.isEmpty() && (written.size() >= FINALIZE_BATCH_SIZE || remaining == 0)) {
+                batch = new ArrayList<>(written);
+                written.clear();
+            }
+        }
+        if (batch != null) {
+            finalizeBatch(batch);
+        }
+    }
+
+    /**
+     * Publishes a batch of written images and drops their spools.
+     */
+    private void finalizeBatch(List<Entry> batch) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            for (Entry entry : batch) {
+                operations.add(ContentProviderOperation.newUpdate(entry.uri)
+                        .withValue(MediaStore.Images.Media.IS_PENDING, 0)
+                        .build());
+            }
+            try {
+                contentResolver.applyBatch(MediaStore.AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                Log.w(TAG, "Batch finalize failed, finalizing one by one", e);
+                ContentValues values = new ContentValues();
+                values.put(MediaStore.Images.Media.IS_PENDING, 0);
+                for (Entry entry : batch) {
+                    try {
+                        contentResolver.update(entry.uri, values, null, null);
+                    } catch (RuntimeException updateError) {
+                        Log.e(TAG, "Error finalizing " + entry.uri, updateError);
+                    }
+                }
+            }
+        } else {
+            // Before IS_PENDING, one scan for the whole batch; the scanner takes file paths
+            List<String> paths = new ArrayList<>();
+            List<String> mimeTypes = new ArrayList<>();
+            for (Entry entry : batch) {
+                String path = getDataPath(entry.uri);
+                if (path != null) {
+                    paths.add(path);
+                    mimeTypes.add(entry.mimeType);
+                }
+            }
+            if (!paths.isEmpty()) {
+                MediaScannerConnection.scanFile(context, paths.toArray(new String[0]), mimeTypes.toArray(new String[0]), null);
+            }
+        }
+
+        for (Entry entry : batch) {
+            complete(entry);
+        }
+        Log.d(TAG, "Finalized " + batch.size() + " images");
+    }
+
+    /**
+     * @return The file path of a MediaStore row before API 29, or null if it cannot be read.
+     */
+    @SuppressWarnings("deprecation") // DATA is only read before scoped storage
+    private String getDataPath(Uri uri) {
+        try (Cursor cursor = contentResolver.query(uri, new String[]{MediaStore.Images.Media.DATA}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getString(0);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to read the path of " + uri, e);
+        }
+        return null;
+    }
+
+    private void complete(Entry entry) {
+        try {
+            appendJournal(DONE + " " + entry.id);
+        } catch (IOException e) {
+            Log.e(TAG, "Error updating the journal", e); // The image is republished on the next start
+            return;
+        }
+        liveIds.remove(entry.id);
+        if (!entry.spool.delete() && entry.spool.exists()) {
+            Log.w(TAG, "Unable to delete " + entry.spool);
+        }
+    }
+
+    /**
+     * Drops an image that could not be saved, including its partial MediaStore row.
+     */
+    private void discard(Entry entry) {
+        if (entry.uri != null) {
+            try {
+                contentResolver.delete(entry.uri, null, null);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unable to delete " + entry.uri, e);
+            }
+            entry.uri = null;
+        }
+        complete(entry);
+    }
+
+    /**
+     * Republishes the images a previous process journaled but did not finalize, and compacts the
+     * journal. Runs on the executor before any other task.
+     */
+    private void recover() {
+        Map<String, Entry> unfinished = new LinkedHashMap<>();
+        synchronized (journalFile) {
+            if (journalFile.isFile()) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split(" ", 4);
+                        if (fields.length < 2 || liveIds.contains(fields[1])) {
+                            continue;
+                        }
+                        if (ADD.equals(fields[0]) && fields.length == 4) {
+                            unfinished.put(fields[1], new Entry(fields[1], fields[3], fields[2],
+                                    new File(spoolDir, fields[1]), null));
+                        } else if (URI.equals(fields[0]) && fields.length == 3 && unfinished.containsKey(fields[1])) {
+                            unfinished.get(fields[1]).uri = Uri.parse(fields[2]);
+                        } else if (WRITTEN.equals(fields[0]) && unfinished.containsKey(fields[1])) {
+                            unfinished.get(fields[1]).written = true;
+                        } else if (DONE.equals(fields[0])) {
+                            unfinished.remove(fields[1]);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading the journal", e);
+                }
+            }
+            compactJournal(unfinished.values());
+        }
+
+        List<Entry> written = new ArrayList<>();
+        for (Entry entry : unfinished.values()) {
+            if (entry.written && entry.uri != null) {
+                liveIds.add(entry.id);
+                written.add(entry); // Fully written into its pending row, it only needs finalizing
+                continue;
+            }
+            if (entry.uri != null) {
+                // The copy may have been cut short, write it again into a fresh row
+                try {
+                    contentResolver.delete(entry.uri, null, null);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Unable to delete " + entry.uri, e);
+                }
+                entry.uri = null;
+            }
+            if (!entry.spool.isFile()) {
+                // Also an image cut short while written straight into its row, which has no spool
+                Log.w(TAG, "Spool of " + entry.displayName + " is gone, dropping it");
+                complete(entry);
+                continue;
+            }
+            Log.i(TAG, "Resuming the save of " + entry.displayName);
+            liveIds.add(entry.id);
+            submit(entry);
+        }
+        if (!written.isEmpty()) {
+            Log.i(TAG, "Finalizing " + written.size() + " images written before the restart");
+            finalizeBatch(written);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the unfinished images of the previous process and those of
+     * this one. Called with the journal lock held.
+     */
+    private void compactJournal(Iterable<Entry> unfinished) {
+        if (!journalFile.isFile()) {
+            return;
+        }
+        File compacted = new File(spoolDir, JOURNAL_NAME + ".tmp");
+        try {
+            closeJournal();
+            List<String> live = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ", 3);
+                    if (fields.length >= 2 && liveIds.contains(fields[1]) && !DONE.equals(fields[0])) {
+                        live.add(line);
+                    }
+                }
+            }
+            try (Writer writer = new BufferedWriter(new FileWriter(compacted))) {
+                for (Entry entry : unfinished) {
+                    writer.write(ADD + " " + entry.id + " " + entry.mimeType + " " + entry.displayName + "\n");
+                    if (entry.uri != null) {
+                        writer.write(URI + " " + entry.id + " " + entry.uri + "\n");
+                    }
+                    if (entry.written) {
+                        writer.write(WRITTEN + " " + entry.id + "\n");
+                    }
+                }
+                for (String line : live) {
+                    writer.write(line + "\n");
+                }
+            }
+            if (!compacted.renameTo(journalFile)) {
+                throw new IOException("Unable to replace " + journalFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error compacting the journal", e);
+        }
+    }
+
+    private void appendJournal(String line) throws IOException {
+        synchronized (journalFile) {
+            if (journal == null) {
+                journal = new BufferedWriter(new FileWriter(journalFile, true));
+            }
+            journal.write(line + "\n");
+            journal.flush();
+        }
+    }
+
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+}
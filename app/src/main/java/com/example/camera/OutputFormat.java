@@ -0,0 +1,96 @@
+package com.example.camera;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * The formats compressed images can be written in, each with its own size model and quality search.
+ * <p>
+ * JPEG and lossy WebP search the quality for the byte budget. For lossless WebP the quality only
+ * trades encode time for size, so it is encoded once at a fixed effort and the budget is met by
+ * the {@link CompressionPlanner} choosing fewer pixels.
+ */
+public enum OutputFormat {
+    // Roughly what a detailed photo costs at the quality the planner aims for; deliberately on
+    // the high side, so the first plan usually fits without a second pass
+    JPEG("image/jpeg", "jpg", 0.45, Build.VERSION_CODES.BASE),
+    WEBP_LOSSY("image/webp", "webp", 0.32, Build.VERSION_CODES.BASE), // About 30% under JPEG at the same look
+    WEBP_LOSSLESS("image/webp", "webp", 2.0, Build.VERSION_CODES.Q); // Needs WEBP at quality 100 to mean lossless
+
+    private static final int LOSSLESS_EFFORT = 75; // The platform default: smaller output costs disproportionate time above it
+
+    private final String mimeType;
+    private final String extension;
+    private final double bytesPerPixel;
+    private final int minSdk;
+
+    OutputFormat(String mimeType, String extension, double bytesPerPixel, int minSdk) {
+        this.mimeType = mimeType;
+        this.extension = extension;
+        this.bytesPerPixel = bytesPerPixel;
+        this.minSdk = minSdk;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return The file extension, without the dot.
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return The expected compressed size per pixel of a typical photo, used to plan the output resolution.
+     */
+    public double getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * @return Whether this device can encode the format.
+     */
+    public boolean isSupported() {
+        return Build.VERSION.SDK_INT >= minSdk;
+    }
+
+    /**
+     * @return The platform format to pass to {@link Bitmap#compress}.
+     */
+    @SuppressWarnings("deprecation")
+    public Bitmap.CompressFormat getCompressFormat() {
+        switch (this) {
+            case WEBP_LOSSY:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+            case WEBP_LOSSLESS:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSLESS : Bitmap.CompressFormat.WEBP;
+            default:
+                return Bitmap.CompressFormat.JPEG;
+        }
+    }
+
+    /**
+     * Creates the quality search for this format.
+     *
+     * @param targetSizeBytes The maximum size of the compressed image in bytes.
+     * @param minQuality      The lowest quality the search may go down to; ignored for lossless output.
+     * @param strategy        How the quality is chosen; ignored for lossless output.
+     */
+    public ImageCompressor createCompressor(long targetSizeBytes, int minQuality, ImageCompressor.Strategy strategy) {
+        switch (this) {
+            case WEBP_LOSSY:
+                // Before R the legacy WEBP format turns lossless at quality 100
+                int maxQuality = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? ImageCompressor.DEFAULT_MAX_QUALITY : 99;
+                return new ImageCompressor(targetSizeBytes, Math.min(minQuality, maxQuality), maxQuality,
+                        ImageCompressor.DEFAULT_MAX_ENCODES, strategy);
+            case WEBP_LOSSLESS:
+                // A single encode: if it misses, the planner downscales instead
+                int effort = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? LOSSLESS_EFFORT : 100;
+                return new ImageCompressor(targetSizeBytes, effort, effort, 1, ImageCompressor.Strategy.BISECT);
+            default:
+                return new ImageCompressor(targetSizeBytes, minQuality, strategy);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.camera;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.Locale;
+
+/**
+ * Memory-bounded LRU cache of view-sized preview bitmaps, keyed by capture and output format.
+ * <p>
+ * Previews are decoded at the size of the view that shows them, so the budget holds many of
+ * them; reopening or rotating the compressor screen reuses the cached preview instead of
+ * decoding the compressed image again.
+ */
+public class PreviewCache {
+
+    private static final int MAX_BYTES = (int) Math.min(16L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+
+    private static final PreviewCache INSTANCE = new PreviewCache(MAX_BYTES);
+
+    private final LruCache<String, Bitmap> previews;
+
+    PreviewCache(int maxBytes) {
+        previews = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+    }
+
+    public static PreviewCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param sourceKey The capture ID, or the URI of an image opened from storage.
+     * @return The key of the preview of the source compressed to the format, which looks
+     * different from the same source compressed to another format.
+     */
+    static String key(OutputFormat format, String sourceKey) {
+        return format + ":" + sourceKey;
+    }
+
+    /**
+     * @return The cached preview, or null if there is none.
+     */
+    public Bitmap get(String key) {
+        return previews.get(key);
+    }
+
+    public void put(String key, Bitmap preview) {
+        previews.put(key, preview);
+    }
+
+    public int getHitCount() {
+        return previews.hitCount();
+    }
+
+    public int getMissCount() {
+        return previews.missCount();
+    }
+
+    public double getHitRate() {
+        int requests = previews.hitCount() + previews.missCount();
+        return requests > 0 ? (double) previews.hitCount() / requests : 0;
+    }
+
+    /**
+     * @return The number of bytes held by the cached previews.
+     */
+    public int getBytesHeld() {
+        return previews.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%.0f%% hits (%d/%d), %d KB held",
+                getHitRate() * 100, getHitCount(), getHitCount() + getMissCount(), getBytesHeld() / 1024);
+    }
+}
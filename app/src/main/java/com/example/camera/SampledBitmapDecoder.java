@@ -0,0 +1,291 @@
+package com.example.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes images at the resolution they are actually needed at.
+ * <p>
+ * The bounds are read first, then the sample size, the exact scale and the pixel config are
+ * chosen from the requested maximum resolution and memory budget, so the decoded bitmap never
+ * costs more than the budget regardless of the sensor resolution.
+ */
+public class SampledBitmapDecoder {
+
+    private static final String TAG = "SampledBitmapDecoder";
+
+    private static final int BYTES_PER_PIXEL_ARGB_8888 = 4;
+    private static final int BYTES_PER_PIXEL_RGB_565 = 2;
+
+    /**
+     * Opens a fresh stream over the encoded image each time it is called.
+     */
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Limits for a single decode.
+     */
+    public static class Options {
+        private final int maxWidth;
+        private final int maxHeight;
+        private final long maxBytes;
+
+        /**
+         * @param maxWidth  The maximum width of the decoded bitmap.
+         * @param maxHeight The maximum height of the decoded bitmap.
+         * @param maxBytes  The maximum number of bytes the decoded pixels may take.
+         */
+        public Options(int maxWidth, int maxHeight, long maxBytes) {
+            if (maxWidth <= 0 || maxHeight <= 0 || maxBytes <= 0) {
+                throw new IllegalArgumentException("Invalid decode limits: " + maxWidth + "x" + maxHeight + ", " + maxBytes + " bytes");
+            }
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxBytes = maxBytes;
+        }
+
+        public int getMaxWidth() {
+            return maxWidth;
+        }
+
+        public int getMaxHeight() {
+            return maxHeight;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+    }
+
+    /**
+     * An encoded image that can be read more than once: for the bounds, then for the pixels.
+     */
+    public interface Source {
+        /**
+         * @return Options holding outWidth and outHeight of the image, both 0 or less if it cannot be decoded.
+         */
+        BitmapFactory.Options readBounds() throws IOException;
+
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+
+        /**
+         * @return A decoder for rectangular regions of the image, see {@link TiledBitmapDecoder}.
+         * The caller must recycle it.
+         * @throws IOException If the image cannot be read or its format cannot be decoded by region.
+         */
+        BitmapRegionDecoder newRegionDecoder() throws IOException;
+    }
+
+    /**
+     * @return A source over an image that is already in memory.
+     */
+    public static Source fromBytes(byte[] data) {
+        return fromBytes(data, 0, data.length);
+    }
+
+    /**
+     * @return A source over part of an array, such as a pooled buffer.
+     */
+    public static Source fromBytes(byte[] data, int offset, int length) {
+        return new Source() {
+            @Override
+            public BitmapFactory.Options readBounds() {
+                BitmapFactory.Options bounds = new BitmapFactory.Options();
+                bounds.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data, offset, length, bounds);
+                return bounds;
+            }
+
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(data, offset, length, options);
+            }
+
+            @Override
+            @SuppressWarnings("deprecation")
+            public BitmapRegionDecoder newRegionDecoder() throws IOException {
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                        ? BitmapRegionDecoder.newInstance(data, offset, length)
+                        : BitmapRegionDecoder.newInstance(data, offset, length, false);
+            }
+        };
+    }
+
+    /**
+     * @return A source that opens a fresh stream for every read.
+     */
+    public static Source fromStream(StreamOpener opener) {
+        return new Source() {
+            @Override
+            public BitmapFactory.Options readBounds() throws IOException {
+                BitmapFactory.Options bounds = new BitmapFactory.Options();
+                bounds.inJustDecodeBounds = true;
+                try (InputStream inputStream = opener.open()) {
+                    BitmapFactory.decodeStream(inputStream, null, bounds);
+                }
+                return bounds;
+            }
+
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) throws IOException {
+                try (InputStream inputStream = opener.open()) {
+                    return BitmapFactory.decodeStream(inputStream, null, options);
+                }
+            }
+
+            @Override
+            @SuppressWarnings("deprecation")
+            public BitmapRegionDecoder newRegionDecoder() throws IOException {
+                try (InputStream inputStream = opener.open()) {
+                    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                            ? BitmapRegionDecoder.newInstance(inputStream)
+                            : BitmapRegionDecoder.newInstance(inputStream, false);
+                }
+            }
+        };
+    }
+
+    /**
+     * Decodes the image within the given limits.
+     *
+     * @param opener  Opens the encoded image. It is called twice, once for the bounds and once for the pixels.
+     * @param options The resolution and memory limits.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public static Bitmap decode(StreamOpener opener, Options options) throws IOException {
+        return decode(fromStream(opener), options);
+    }
+
+    /**
+     * Decodes an image that is already in memory within the given limits.
+     *
+     * @param data    The encoded image.
+     * @param options The resolution and memory limits.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public static Bitmap decode(byte[] data, Options options) throws IOException {
+        return decode(fromBytes(data), options);
+    }
+
+    /**
+     * Decodes the image within the given limits, reading its bounds first.
+     *
+     * @param source  The encoded image.
+     * @param options The resolution and memory limits.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public static Bitmap decode(Source source, Options options) throws IOException {
+        BitmapFactory.Options bounds = source.readBounds();
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        return decode(source, bounds.outWidth, bounds.outHeight, options);
+    }
+
+    /**
+     * Decodes an image whose bounds are already known within the given limits.
+     *
+     * @param source       The encoded image.
+     * @param sourceWidth  The width of the encoded image.
+     * @param sourceHeight The height of the encoded image.
+     * @param options      The resolution and memory limits.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public static Bitmap decode(Source source, int sourceWidth, int sourceHeight, Options options) throws IOException {
+        BitmapFactory.Options decodeOptions = createDecodeOptions(sourceWidth, sourceHeight, options);
+        Log.d(TAG, "Decoding " + sourceWidth + "x" + sourceHeight + " to " + getTargetWidth(sourceWidth, decodeOptions)
+                + " px wide (sample size " + decodeOptions.inSampleSize + ", " + decodeOptions.inPreferredConfig + ")");
+        return source.decode(decodeOptions);
+    }
+
+    /**
+     * Estimates the peak memory of decoding the whole image in one go within the given limits:
+     * the sampled bitmap, plus the scaled one when the decoder scales the rest of the way. The
+     * sampled bitmap can be close to four times the requested size, since the sample size is a
+     * power of two.
+     *
+     * @return The estimated bytes.
+     */
+    public static long estimateDecodeBytes(int sourceWidth, int sourceHeight, Options options) {
+        BitmapFactory.Options decodeOptions = createDecodeOptions(sourceWidth, sourceHeight, options);
+        int bytesPerPixel = getBytesPerPixel(decodeOptions.inPreferredConfig);
+        int sampledWidth = sourceWidth / decodeOptions.inSampleSize;
+        int sampledHeight = sourceHeight / decodeOptions.inSampleSize;
+        long bytes = (long) sampledWidth * sampledHeight * bytesPerPixel;
+        if (decodeOptions.inScaled) {
+            int targetWidth = getTargetWidth(sourceWidth, decodeOptions);
+            bytes += (long) targetWidth * getTargetHeight(sourceWidth, sourceHeight, targetWidth) * bytesPerPixel;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The width the decode options produce: the sampled width, scaled if the decoder scales.
+     */
+    static int getTargetWidth(int sourceWidth, BitmapFactory.Options decodeOptions) {
+        return decodeOptions.inScaled ? decodeOptions.inTargetDensity : sourceWidth / decodeOptions.inSampleSize;
+    }
+
+    /**
+     * @return The height matching the given width, keeping the aspect ratio of the source.
+     */
+    static int getTargetHeight(int sourceWidth, int sourceHeight, int targetWidth) {
+        return Math.max(1, (int) Math.round((double) sourceHeight * targetWidth / sourceWidth));
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? BYTES_PER_PIXEL_RGB_565 : BYTES_PER_PIXEL_ARGB_8888;
+    }
+
+    /**
+     * Works out the sample size, scale and pixel config for a source of the given size.
+     */
+    static BitmapFactory.Options createDecodeOptions(int sourceWidth, int sourceHeight, Options options) {
+        // Fit inside the requested resolution without upscaling
+        double scale = Math.min(1.0, Math.min(
+                (double) options.getMaxWidth() / sourceWidth,
+                (double) options.getMaxHeight() / sourceHeight));
+        int targetWidth = Math.max(1, (int) (sourceWidth * scale));
+        int targetHeight = Math.max(1, (int) (sourceHeight * scale));
+
+        // Prefer full colour, drop to RGB_565 if that is what it takes to stay within the
+        // budget, and only then give up resolution
+        Bitmap.Config config = Bitmap.Config.ARGB_8888;
+        long pixels = (long) targetWidth * targetHeight;
+        if (pixels * BYTES_PER_PIXEL_ARGB_8888 > options.getMaxBytes()) {
+            config = Bitmap.Config.RGB_565;
+            if (pixels * BYTES_PER_PIXEL_RGB_565 > options.getMaxBytes()) {
+                double shrink = Math.sqrt((double) options.getMaxBytes() / (pixels * BYTES_PER_PIXEL_RGB_565));
+                targetWidth = Math.max(1, (int) (targetWidth * shrink));
+                targetHeight = Math.max(1, (int) (targetHeight * shrink));
+            }
+        }
+
+        // The decoder subsamples by powers of two, keep the largest one that stays above the target
+        int sampleSize = 1;
+        while (sourceWidth / (sampleSize * 2) >= targetWidth && sourceHeight / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inSampleSize = sampleSize;
+        decodeOptions.inPreferredConfig = config;
+
+        // Let the decoder scale the rest of the way, so the sampled bitmap is never handed back
+        int sampledWidth = sourceWidth / sampleSize;
+        if (sampledWidth > targetWidth) {
+            decodeOptions.inScaled = true;
+            decodeOptions.inDensity = sampledWidth;
+            decodeOptions.inTargetDensity = targetWidth;
+        }
+        return decodeOptions;
+    }
+}
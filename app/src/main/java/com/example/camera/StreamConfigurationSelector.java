@@ -0,0 +1,115 @@
+package com.example.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Log;
+import android.util.Size;
+
+/**
+ * Chooses the preview and still-capture stream sizes independently.
+ * <p>
+ * The still size is the smallest JPEG output that reaches the configured megapixel target, since
+ * anything larger is downscaled by the compressor anyway. The preview size is the smallest
+ * SurfaceTexture output with the same aspect ratio that still covers the view, so the preview
+ * never streams at full sensor size just to be shown a few hundred pixels wide.
+ */
+public class StreamConfigurationSelector {
+
+    private static final String TAG = "StreamConfiguration";
+
+    // Camera2 only guarantees preview streams up to 1080p
+    private static final int MAX_PREVIEW_LONG_SIDE = 1920;
+    private static final int MAX_PREVIEW_SHORT_SIDE = 1080;
+    private static final double ASPECT_RATIO_TOLERANCE = 0.01;
+
+    private final double stillTargetMegapixels;
+
+    /**
+     * @param stillTargetMegapixels The resolution stills are needed at, in megapixels.
+     */
+    public StreamConfigurationSelector(double stillTargetMegapixels) {
+        this.stillTargetMegapixels = stillTargetMegapixels;
+    }
+
+    /**
+     * @return The smallest JPEG size with at least the target megapixels, or the largest one if none reaches it.
+     */
+    public Size selectStillSize(StreamConfigurationMap map) {
+        return selectStillSize(map, ImageFormat.JPEG);
+    }
+
+    /**
+     * @param format The {@link ImageFormat} of the still stream, e.g. YUV_420_888.
+     * @return The smallest size of the format with at least the target megapixels, or the largest one if none reaches it.
+     */
+    public Size selectStillSize(StreamConfigurationMap map, int format) {
+        Size[] sizes = map.getOutputSizes(format);
+        long targetPixels = (long) (stillTargetMegapixels * 1_000_000);
+        Size best = null;
+        Size largest = null;
+        for (Size size : sizes) {
+            long pixels = area(size);
+            if (largest == null || pixels > area(largest)) {
+                largest = size;
+            }
+            if (pixels >= targetPixels && (best == null || pixels < area(best))) {
+                best = size;
+            }
+        }
+        Size still = best != null ? best : largest;
+        Log.i(TAG, "Still size " + still + " in format " + format + " for a " + stillTargetMegapixels + " MP target");
+        return still;
+    }
+
+    /**
+     * @param map               The stream configurations of the camera.
+     * @param viewWidth         The width of the view showing the preview.
+     * @param viewHeight        The height of the view showing the preview.
+     * @param stillSize         The chosen still size, whose aspect ratio the preview should match.
+     * @param sensorOrientation The clockwise rotation of the sensor relative to the display, in degrees.
+     * @return The smallest matching preview size that covers the view.
+     */
+    public Size selectPreviewSize(StreamConfigurationMap map, int viewWidth, int viewHeight, Size stillSize,
+                                  int sensorOrientation) {
+        // Stream sizes are in sensor orientation, so compare against the view turned the same way
+        boolean swapped = sensorOrientation == 90 || sensorOrientation == 270;
+        int coverWidth = swapped ? viewHeight : viewWidth;
+        int coverHeight = swapped ? viewWidth : viewHeight;
+        double aspectRatio = (double) stillSize.getWidth() / stillSize.getHeight();
+
+        Size smallestCovering = null;
+        Size largestBelow = null;
+        Size largestAnyRatio = null;
+        for (Size size : map.getOutputSizes(SurfaceTexture.class)) {
+            if (Math.max(size.getWidth(), size.getHeight()) > MAX_PREVIEW_LONG_SIDE
+                    || Math.min(size.getWidth(), size.getHeight()) > MAX_PREVIEW_SHORT_SIDE) {
+                continue;
+            }
+            if (largestAnyRatio == null || area(size) > area(largestAnyRatio)) {
+                largestAnyRatio = size;
+            }
+            if (Math.abs((double) size.getWidth() / size.getHeight() - aspectRatio) > ASPECT_RATIO_TOLERANCE) {
+                continue;
+            }
+            if (size.getWidth() >= coverWidth && size.getHeight() >= coverHeight) {
+                if (smallestCovering == null || area(size) < area(smallestCovering)) {
+                    smallestCovering = size;
+                }
+            } else if (largestBelow == null || area(size) > area(largestBelow)) {
+                largestBelow = size;
+            }
+        }
+
+        Size preview = smallestCovering != null ? smallestCovering
+                : largestBelow != null ? largestBelow
+                : largestAnyRatio != null ? largestAnyRatio
+                : map.getOutputSizes(SurfaceTexture.class)[0];
+        Log.i(TAG, "Preview size " + preview + " for a " + viewWidth + "x" + viewHeight + " view");
+        return preview;
+    }
+
+    private static long area(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+}
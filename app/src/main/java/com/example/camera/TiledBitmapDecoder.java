@@ -0,0 +1,126 @@
+package com.example.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Decodes very large images tile by tile, for when decoding them in one go would not fit the
+ * memory budget.
+ * <p>
+ * A whole-image decode has to hold the sampled bitmap, which can be close to four times the
+ * requested size, and on its way through the decoder a scaled copy of it. Here each tile of the
+ * source is decoded at the sample size into a single reused tile bitmap and drawn, filtered and
+ * scaled, straight into the output bitmap. Partial tiles at the right and bottom edges are decoded
+ * into bitmaps of their own exact size instead: drawn from a corner of the reused tile, filtering
+ * would blend in the stale pixels of the previous tile next to it. Peak memory is the output plus
+ * two tiles, whatever the resolution of the source.
+ */
+public class TiledBitmapDecoder {
+
+    private static final String TAG = "TiledBitmapDecoder";
+
+    private static final int TILE_SIZE = 512; // Side of a decoded tile in px, after sampling
+
+    private TiledBitmapDecoder() {
+    }
+
+    /**
+     * @return Whether decoding the whole image in one go would exceed the memory budget of the options.
+     */
+    public static boolean shouldTile(int sourceWidth, int sourceHeight, SampledBitmapDecoder.Options options) {
+        return SampledBitmapDecoder.estimateDecodeBytes(sourceWidth, sourceHeight, options) > options.getMaxBytes();
+    }
+
+    /**
+     * Decodes the image within the given limits, including the tile in the memory budget.
+     *
+     * @param source       The encoded image.
+     * @param sourceWidth  The width of the encoded image.
+     * @param sourceHeight The height of the encoded image.
+     * @param options      The resolution and memory limits.
+     * @return The decoded bitmap.
+     * @throws IOException If the image cannot be decoded by region, e.g. because of its format.
+     */
+    public static Bitmap decode(SampledBitmapDecoder.Source source, int sourceWidth, int sourceHeight,
+                                SampledBitmapDecoder.Options options) throws IOException {
+        long tileBytes = (long) TILE_SIZE * TILE_SIZE * SampledBitmapDecoder.getBytesPerPixel(Bitmap.Config.ARGB_8888);
+        if (options.getMaxBytes() <= 3 * tileBytes) {
+            throw new IOException("Decode budget of " + options.getMaxBytes() + " bytes is too small to tile");
+        }
+        // The output gets what the reused tile and an edge tile leave of the budget
+        BitmapFactory.Options decodeOptions = SampledBitmapDecoder.createDecodeOptions(sourceWidth, sourceHeight,
+                new SampledBitmapDecoder.Options(options.getMaxWidth(), options.getMaxHeight(), options.getMaxBytes() - 2 * tileBytes));
+        int sampleSize = decodeOptions.inSampleSize;
+        Bitmap.Config config = decodeOptions.inPreferredConfig;
+        int targetWidth = SampledBitmapDecoder.getTargetWidth(sourceWidth, decodeOptions);
+        int targetHeight = SampledBitmapDecoder.getTargetHeight(sourceWidth, sourceHeight, targetWidth);
+
+        BitmapRegionDecoder regionDecoder = source.newRegionDecoder();
+        Bitmap output = null;
+        Bitmap tile = null;
+        try {
+            output = Bitmap.createBitmap(targetWidth, targetHeight, config);
+            tile = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, config);
+            Canvas canvas = new Canvas(output);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+            BitmapFactory.Options tileOptions = new BitmapFactory.Options();
+            tileOptions.inSampleSize = sampleSize;
+            tileOptions.inPreferredConfig = config;
+            tileOptions.inBitmap = tile;
+            BitmapFactory.Options edgeOptions = new BitmapFactory.Options();
+            edgeOptions.inSampleSize = sampleSize;
+            edgeOptions.inPreferredConfig = config;
+
+            double scaleX = (double) targetWidth / sourceWidth;
+            double scaleY = (double) targetHeight / sourceHeight;
+            int tileSourceSize = TILE_SIZE * sampleSize;
+            Rect region = new Rect();
+            RectF destination = new RectF();
+            int tiles = 0;
+            for (int top = 0; top < sourceHeight; top += tileSourceSize) {
+                for (int left = 0; left < sourceWidth; left += tileSourceSize) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Tiled decode cancelled after " + tiles + " tiles");
+                    }
+                    region.set(left, top, Math.min(left + tileSourceSize, sourceWidth), Math.min(top + tileSourceSize, sourceHeight));
+                    boolean edge = region.width() < tileSourceSize || region.height() < tileSourceSize;
+                    Bitmap decoded = regionDecoder.decodeRegion(region, edge ? edgeOptions : tileOptions);
+                    if (decoded == null) {
+                        throw new IOException("Unable to decode the region " + region);
+                    }
+                    destination.set((float) (region.left * scaleX), (float) (region.top * scaleY),
+                            (float) (region.right * scaleX), (float) (region.bottom * scaleY));
+                    // The whole bitmap, so filtering at its borders only ever repeats its own pixels
+                    canvas.drawBitmap(decoded, null, destination, paint);
+                    if (edge) {
+                        decoded.recycle();
+                    }
+                    tiles++;
+                }
+            }
+            Log.d(TAG, "Decoded " + sourceWidth + "x" + sourceHeight + " to " + targetWidth + "x" + targetHeight
+                    + " in " + tiles + " tiles (sample size " + sampleSize + ", " + config + ")");
+            Bitmap result = output;
+            output = null;
+            return result;
+        } finally {
+            if (tile != null) {
+                tile.recycle();
+            }
+            if (output != null) {
+                output.recycle();
+            }
+            regionDecoder.recycle();
+        }
+    }
+}
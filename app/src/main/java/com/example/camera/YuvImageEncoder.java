@@ -0,0 +1,230 @@
+package com.example.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a YUV_420_888 camera frame to JPEG with {@link YuvImage}, so a capture is compressed
+ * once from the sensor output instead of being encoded by the camera, decoded and encoded again.
+ * <p>
+ * The frame is copied to NV21, the only layout YuvImage takes with chroma subsampling, and the
+ * Image can be closed right away. YuvImage neither rotates nor writes EXIF, so the rotation the
+ * camera would have applied through {@code JPEG_ORIENTATION} is written as an EXIF orientation
+ * tag right after the start of image.
+ */
+public class YuvImageEncoder implements ImageEncoder {
+
+    private final byte[] nv21;
+    private final int width;
+    private final int height;
+    private final int orientation;
+    private final YuvImage yuvImage;
+
+    /**
+     * @param nv21        The frame in NV21: the Y plane, then interleaved V and U at half resolution.
+     * @param width       The width of the frame, even.
+     * @param height      The height of the frame, even.
+     * @param orientation The clockwise rotation to display the frame upright: 0, 90, 180 or 270 degrees.
+     */
+    public YuvImageEncoder(byte[] nv21, int width, int height, int orientation) {
+        if (width % 2 != 0 || height % 2 != 0 || nv21.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("Invalid NV21 frame: " + width + "x" + height + ", " + nv21.length + " bytes");
+        }
+        this.nv21 = nv21;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+    }
+
+    /**
+     * Copies a YUV_420_888 frame to NV21. Odd widths and heights lose their last column or row.
+     *
+     * @param image       The frame. It is not closed.
+     * @param orientation The clockwise rotation to display the frame upright, in degrees.
+     */
+    public static YuvImageEncoder fromImage(Image image, int orientation) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Not a YUV_420_888 image: " + image.getFormat());
+        }
+        int width = image.getWidth() & ~1;
+        int height = image.getHeight() & ~1;
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        Image.Plane[] planes = image.getPlanes();
+
+        // Luma, a row at a time; the row stride may be padded
+        ByteBuffer yBuffer = planes[0].getBuffer().duplicate();
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        byte[] row = new byte[(width - 1) * yPixelStride + 1];
+        for (int y = 0; y < height; y++) {
+            yBuffer.position(y * yRowStride);
+            if (yPixelStride == 1) {
+                yBuffer.get(nv21, y * width, width);
+            } else {
+                yBuffer.get(row, 0, (width - 1) * yPixelStride + 1);
+                for (int x = 0; x < width; x++) {
+                    nv21[y * width + x] = row[x * yPixelStride];
+                }
+            }
+        }
+
+        // Chroma, interleaved V then U; the planes may already be interleaved in memory, but the
+        // API does not promise it, so each row is read in bulk and picked by the pixel stride
+        ByteBuffer uBuffer = planes[1].getBuffer().duplicate();
+        ByteBuffer vBuffer = planes[2].getBuffer().duplicate();
+        int uRowStride = planes[1].getRowStride();
+        int vRowStride = planes[2].getRowStride();
+        int uPixelStride = planes[1].getPixelStride();
+        int vPixelStride = planes[2].getPixelStride();
+        int chromaWidth = width / 2;
+        byte[] uRow = new byte[(chromaWidth - 1) * uPixelStride + 1];
+        byte[] vRow = new byte[(chromaWidth - 1) * vPixelStride + 1];
+        int offset = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            uBuffer.position(y * uRowStride);
+            uBuffer.get(uRow);
+            vBuffer.position(y * vRowStride);
+            vBuffer.get(vRow);
+            for (int x = 0; x < chromaWidth; x++) {
+                nv21[offset++] = vRow[x * vPixelStride];
+                nv21[offset++] = uRow[x * uPixelStride];
+            }
+        }
+        return new YuvImageEncoder(nv21, width, height, orientation);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void encode(int quality, OutputStream output) throws IOException {
+        OutputStream stream = orientation != 0 ? new ExifOrientationStream(output, orientation) : output;
+        if (!yuvImage.compressToJpeg(new Rect(0, 0, width, height), quality, stream)) {
+            throw new IOException("Unable to encode the YUV frame");
+        }
+    }
+
+    /**
+     * Scales with a box filter, each output sample being the average of the input samples it
+     * covers. Sizes are rounded down to even.
+     */
+    @Override
+    public ImageEncoder scaled(int targetWidth, int targetHeight) {
+        int scaledWidth = Math.max(2, targetWidth & ~1);
+        int scaledHeight = Math.max(2, targetHeight & ~1);
+        byte[] scaled = new byte[scaledWidth * scaledHeight * 3 / 2];
+        scalePlane(nv21, 0, width, height, 1, scaled, 0, scaledWidth, scaledHeight);
+        scalePlane(nv21, width * height, width / 2, height / 2, 2,
+                scaled, scaledWidth * scaledHeight, scaledWidth / 2, scaledHeight / 2);
+        return new YuvImageEncoder(scaled, scaledWidth, scaledHeight, orientation);
+    }
+
+    @Override
+    public void release() {
+        // The frame is a plain array, nothing to free early
+    }
+
+    /**
+     * Box-filters one plane of {@code channels} interleaved bytes per sample.
+     */
+    private static void scalePlane(byte[] source, int sourceOffset, int sourceWidth, int sourceHeight, int channels,
+                                   byte[] target, int targetOffset, int targetWidth, int targetHeight) {
+        for (int ty = 0; ty < targetHeight; ty++) {
+            int top = ty * sourceHeight / targetHeight;
+            int bottom = Math.max(top + 1, (ty + 1) * sourceHeight / targetHeight);
+            for (int tx = 0; tx < targetWidth; tx++) {
+                int left = tx * sourceWidth / targetWidth;
+                int right = Math.max(left + 1, (tx + 1) * sourceWidth / targetWidth);
+                int count = (bottom - top) * (right - left);
+                for (int c = 0; c < channels; c++) {
+                    int sum = 0;
+                    for (int sy = top; sy < bottom; sy++) {
+                        int rowStart = sourceOffset + (sy * sourceWidth) * channels + c;
+                        for (int sx = left; sx < right; sx++) {
+                            sum += source[rowStart + sx * channels] & 0xFF;
+                        }
+                    }
+                    target[targetOffset + (ty * targetWidth + tx) * channels + c] = (byte) (sum / count);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return An EXIF APP1 segment holding only the orientation tag for the clockwise rotation.
+     */
+    static byte[] exifOrientationSegment(int degrees) {
+        byte orientation;
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                orientation = 6;
+                break;
+            case 180:
+                orientation = 3;
+                break;
+            case 270:
+                orientation = 8;
+                break;
+            default:
+                orientation = 1;
+                break;
+        }
+        return new byte[]{
+                (byte) 0xFF, (byte) 0xE1, 0, 34, // APP1 and its length, which counts itself
+                'E', 'x', 'i', 'f', 0, 0,
+                'M', 'M', 0, 42, 0, 0, 0, 8, // Big-endian TIFF header, IFD0 at offset 8
+                0, 1, // One entry
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, orientation, 0, 0, // Orientation, SHORT, count 1, value
+                0, 0, 0, 0 // No next IFD
+        };
+    }
+
+    /**
+     * Inserts the EXIF segment after the two bytes of the start of image marker.
+     */
+    private static class ExifOrientationStream extends FilterOutputStream {
+        private final byte[] segment;
+        private int written; // Bytes of the JPEG passed through so far
+
+        ExifOrientationStream(OutputStream output, int degrees) {
+            super(output);
+            this.segment = exifOrientationSegment(degrees);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (written < 2) {
+                int head = Math.min(len, 2 - written);
+                out.write(b, off, head);
+                written += head;
+                off += head;
+                len -= head;
+                if (written == 2) {
+                    out.write(segment);
+                }
+            }
+            out.write(b, off, len);
+            written += len;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionPlannerTest {
+
+    private static final long TARGET_BYTES = 2_000_000;
+    private static final int MAX_DIMENSION = 4096;
+    private static final int MIN_QUALITY = 30;
+    private static final double BYTES_PER_PIXEL = 0.45; // JPEG's estimate, so about 4.4 MP fit the budget
+
+    private final CompressionPlanner planner = new CompressionPlanner(TARGET_BYTES, MAX_DIMENSION, MIN_QUALITY, BYTES_PER_PIXEL);
+
+    @Test
+    public void smallSourceKeepsItsSize() {
+        CompressionPlanner.Plan plan = planner.plan(1600, 1200);
+
+        assertEquals(1600, plan.getWidth());
+        assertEquals(1200, plan.getHeight());
+        assertEquals(60, plan.getMinQuality());
+        assertEquals(1, plan.getPass());
+    }
+
+    @Test
+    public void largeSourceIsScaledToTheBudget() {
+        CompressionPlanner.Plan plan = planner.plan(6000, 4000);
+
+        long pixels = (long) plan.getWidth() * plan.getHeight();
+        assertTrue(pixels <= TARGET_BYTES / BYTES_PER_PIXEL * 1.01);
+        assertTrue(pixels >= TARGET_BYTES / BYTES_PER_PIXEL * 0.99);
+        assertEquals(1.5, (double) plan.getWidth() / plan.getHeight(), 0.01);
+    }
+
+    @Test
+    public void wideSourceIsScaledToTheMaxDimension() {
+        CompressionPlanner.Plan plan = planner.plan(12000, 600);
+
+        assertEquals(MAX_DIMENSION, plan.getWidth());
+        assertEquals(205, plan.getHeight());
+    }
+
+    @Test
+    public void replanShrinksByTheOvershoot() {
+        CompressionPlanner.Plan first = planner.plan(2000, 1000);
+        CompressionPlanner.Plan second = planner.replan(first, 4 * TARGET_BYTES);
+
+        double expectedScale = Math.sqrt(0.9 / 4);
+        assertEquals(Math.round(2000 * expectedScale), second.getWidth());
+        assertEquals(Math.round(1000 * expectedScale), second.getHeight());
+        assertEquals(60, second.getMinQuality());
+        assertEquals(2, second.getPass());
+    }
+
+    @Test
+    public void lastPassUsesTheAbsoluteFloor() {
+        CompressionPlanner.Plan plan = planner.plan(2000, 1000);
+        for (int pass = 2; pass <= CompressionPlanner.MAX_PASSES; pass++) {
+            plan = planner.replan(plan, 2 * TARGET_BYTES);
+            assertEquals(pass, plan.getPass());
+        }
+        assertEquals(MIN_QUALITY, plan.getMinQuality());
+        assertNull(planner.replan(plan, 2 * TARGET_BYTES));
+    }
+
+    @Test
+    public void replanGivesUpWhenNothingShrinks() {
+        CompressionPlanner.Plan plan = planner.plan(64, 64);
+
+        assertNull(planner.replan(plan, 2 * TARGET_BYTES));
+        assertNull(planner.replan(planner.plan(1000, 1000), TARGET_BYTES / 2));
+    }
+
+    @Test
+    public void maxPlannedPixelsBoundsEveryPlan() {
+        long maxPixels = planner.getMaxPlannedPixels();
+        int[][] sources = {{1600, 1200}, {6000, 4000}, {12000, 600}, {4096, 4096}, {20000, 20000}};
+        for (int[] source : sources) {
+            CompressionPlanner.Plan plan = planner.plan(source[0], source[1]);
+            // Rounding each side may add a few pixels
+            assertTrue(plan.toString(), (long) plan.getWidth() * plan.getHeight() <= maxPixels + plan.getWidth() + plan.getHeight());
+        }
+        CompressionPlanner smallScreen = new CompressionPlanner(TARGET_BYTES, 1000, MIN_QUALITY, BYTES_PER_PIXEL);
+        assertEquals(1000 * 1000, smallScreen.getMaxPlannedPixels());
+    }
+}
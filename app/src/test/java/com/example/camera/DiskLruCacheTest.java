@@ -0,0 +1,168 @@
+package com.example.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskLruCacheTest {
+
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("disk-lru-cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void entriesSurviveAReopen() throws IOException {
+        DiskLruCache cache = DiskLruCache.create(directory, MAX_BYTES);
+        cache.put("a", bytes(100));
+        cache.put("b", bytes(200));
+
+        DiskLruCache reopened = DiskLruCache.create(directory, MAX_BYTES);
+        try (DiskLruCache.Snapshot a = reopened.get("a")) {
+            assertNotNull(a);
+            assertEquals(100, a.length());
+        }
+        assertTrue(isCached(reopened, "b"));
+        assertEquals(300, reopened.getSize());
+    }
+
+    @Test
+    public void removeIsReplayed() throws IOException {
+        DiskLruCache cache = DiskLruCache.create(directory, MAX_BYTES);
+        cache.put("a", bytes(100));
+        cache.put("b", bytes(200));
+        cache.remove("a");
+
+        DiskLruCache reopened = DiskLruCache.create(directory, MAX_BYTES);
+        assertFalse(isCached(reopened, "a"));
+        assertTrue(isCached(reopened, "b"));
+        assertEquals(200, reopened.getSize());
+    }
+
+    @Test
+    public void unfinishedWriteIsDroppedOnReopen() throws IOException {
+        DiskLruCache cache = DiskLruCache.create(directory, MAX_BYTES);
+        cache.put("a", bytes(100));
+        // What a process killed in the middle of put leaves behind
+        String name = DiskLruCache.fileName("b");
+        File temporary = new File(directory, name + ".tmp");
+        Files.write(temporary.toPath(), new byte[50]);
+        try (Writer journal = new FileWriter(new File(directory, "journal"), true)) {
+            journal.write("DIRTY " + name + "\n");
+        }
+
+        DiskLruCache reopened = DiskLruCache.create(directory, MAX_BYTES);
+        assertFalse(isCached(reopened, "b"));
+        assertFalse(temporary.exists());
+        assertTrue(isCached(reopened, "a"));
+        assertEquals(100, reopened.getSize());
+    }
+
+    @Test
+    public void accessOrderIsReplayedForEviction() throws Exception {
+        DiskLruCache cache = DiskLruCache.create(directory, MAX_BYTES);
+        cache.put("a", bytes(100));
+        cache.put("b", bytes(100));
+        cache.put("c", bytes(100));
+        assertTrue(isCached(cache, "a")); // Now b is the least recently used
+
+        DiskLruCache reopened = DiskLruCache.create(directory, 200);
+        assertFalse(isCached(reopened, "missing")); // Waits for the open; eviction follows on the cache thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reopened.getSize() > 200 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(200, reopened.getSize());
+        assertFalse(isCached(reopened, "b"));
+        assertTrue(isCached(reopened, "a"));
+        assertTrue(isCached(reopened, "c"));
+        assertFalse(new File(directory, DiskLruCache.fileName("b")).exists());
+        assertTrue(new File(directory, DiskLruCache.fileName("a")).exists());
+    }
+
+    @Test
+    public void snapshotOutlivesRemovalAndReplacement() throws IOException {
+        DiskLruCache cache = DiskLruCache.create(directory, MAX_BYTES);
+        cache.put("a", ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        try (DiskLruCache.Snapshot snapshot = cache.get("a")) {
+            assertNotNull(snapshot);
+            cache.remove("a");
+            assertFalse(isCached(cache, "a"));
+            cache.put("a", ByteBuffer.wrap(new byte[]{9, 9}));
+
+            // Still the opened bytes, as many times as they are read
+            assertArrayEquals(new byte[]{1, 2, 3}, readAll(snapshot.newInputStream()));
+            assertArrayEquals(new byte[]{1, 2, 3}, readAll(snapshot.newInputStream()));
+        }
+        try (DiskLruCache.Snapshot replaced = cache.get("a")) {
+            assertArrayEquals(new byte[]{9, 9}, readAll(replaced.newInputStream()));
+        }
+    }
+
+    @Test
+    public void snapshotOutlivesEviction() throws Exception {
+        DiskLruCache cache = DiskLruCache.create(directory, 200);
+        cache.put("a", bytes(150));
+        try (DiskLruCache.Snapshot snapshot = cache.get("a")) {
+            assertNotNull(snapshot);
+            cache.put("b", bytes(150)); // Evicts a on the cache thread
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getSize() > 200 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(new File(directory, DiskLruCache.fileName("a")).exists());
+
+            assertEquals(150, readAll(snapshot.newInputStream()).length);
+        }
+    }
+
+    private static boolean isCached(DiskLruCache cache, String key) throws IOException {
+        try (DiskLruCache.Snapshot snapshot = cache.get(key)) {
+            return snapshot != null;
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static ByteBuffer bytes(int length) {
+        return ByteBuffer.wrap(new byte[length]);
+    }
+}
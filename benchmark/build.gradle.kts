@@ -0,0 +1,34 @@
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+dependencies {
+    implementation(project(":core"))
+}
+
+application {
+    mainClass.set("com.example.camera.CompressionBenchmark")
+}
+
+// ./gradlew :benchmark:run compresses the checked-in corpus with every strategy and fails if a
+// strategy regresses past thresholds.properties
+tasks.named<JavaExec>("run") {
+    workingDir = projectDir
+    args("corpus", "--csv", layout.buildDirectory.file("reports/compression-benchmark.csv").get().asFile.path,
+        "--thresholds", "thresholds.properties")
+}
+
+// ./gradlew :benchmark:generateCorpus rewrites the checked-in corpus from its fixed seeds
+tasks.register<JavaExec>("generateCorpus") {
+    group = "application"
+    description = "Regenerates the synthetic benchmark corpus."
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.example.camera.CorpusGenerator")
+    workingDir = projectDir
+    args("corpus")
+}
@@ -0,0 +1,317 @@
+package com.example.camera;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Compresses a corpus of photos with every {@link ImageCompressor.Strategy} on a plain JVM and
+ * reports, per strategy, the encodes per image, the wall time, the bytes produced and the
+ * allocation rate.
+ * <p>
+ * With {@code --thresholds}, the run fails with exit code 1 if any strategy does worse than the
+ * limits in the given properties file, so CI catches a regression instead of only recording it.
+ * Only the deterministic measurements can be limited: encodes, quality and missed targets, not
+ * wall time or allocations.
+ * <p>
+ * Usage: {@code CompressionBenchmark <corpus dir> [--target-kb N] [--min-quality N]
+ * [--warmup N] [--iterations N] [--csv file] [--thresholds file]}
+ */
+public class CompressionBenchmark {
+
+    private static final long DEFAULT_TARGET_KB = 150; // Sized for the checked-in corpus, not for camera stills
+    private static final int DEFAULT_MIN_QUALITY = 10;
+    private static final int DEFAULT_WARMUP = 3; // Untimed passes over the corpus, to let the JIT settle
+    private static final int DEFAULT_ITERATIONS = 5;
+
+    // Threshold keys, prefixed with the strategy, e.g. PREDICT.max_full_encodes_per_image
+    private static final String MAX_FULL_ENCODES = "max_full_encodes_per_image";
+    private static final String MAX_PROBE_ENCODES = "max_probe_encodes_per_image";
+    private static final String MIN_MEAN_QUALITY = "min_mean_quality";
+    private static final String MAX_MISSED_TARGETS = "max_missed_targets";
+
+    /**
+     * The measurements of one strategy over every image and iteration.
+     */
+    private static class Totals {
+        final ImageCompressor.Strategy strategy;
+        long compressions;
+        long fullEncodes;
+        long probeEncodes;
+        long wallNanos;
+        long bytesProduced;
+        long bytesAllocated = -1; // -1 if the JVM cannot measure allocations
+        long missedTargets;
+        long qualitySum;
+
+        Totals(ImageCompressor.Strategy strategy) {
+            this.strategy = strategy;
+        }
+
+        double perImage(long value) {
+            return compressions > 0 ? (double) value / compressions : 0;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: CompressionBenchmark <corpus dir> [--target-kb N] [--min-quality N]"
+                    + " [--warmup N] [--iterations N] [--csv file] [--thresholds file]");
+            System.exit(2);
+        }
+        File corpusDir = new File(args[0]);
+        long targetBytes = DEFAULT_TARGET_KB * 1024;
+        int minQuality = DEFAULT_MIN_QUALITY;
+        int warmup = DEFAULT_WARMUP;
+        int iterations = DEFAULT_ITERATIONS;
+        File csvFile = null;
+        File thresholdsFile = null;
+        for (int i = 1; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--target-kb":
+                    targetBytes = Long.parseLong(value) * 1024;
+                    break;
+                case "--min-quality":
+                    minQuality = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "--csv":
+                    csvFile = new File(value);
+                    break;
+                case "--thresholds":
+                    thresholdsFile = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        List<ImageIoEncoder> corpus = loadCorpus(corpusDir);
+        System.out.printf(Locale.US, "%d images from %s, target %d KB, %d warmup + %d measured iterations%n",
+                corpus.size(), corpusDir, targetBytes / 1024, warmup, iterations);
+
+        List<Totals> results = new ArrayList<>();
+        for (ImageCompressor.Strategy strategy : ImageCompressor.Strategy.values()) {
+            ImageCompressor compressor = new ImageCompressor(targetBytes, minQuality, strategy);
+            for (int i = 0; i < warmup; i++) {
+                for (ImageIoEncoder image : corpus) {
+                    compressor.compress(image).release();
+                }
+            }
+            Totals totals = new Totals(strategy);
+            for (int i = 0; i < iterations; i++) {
+                for (ImageIoEncoder image : corpus) {
+                    measure(compressor, image, totals);
+                }
+            }
+            results.add(totals);
+        }
+
+        printReport(results);
+        if (csvFile != null) {
+            writeCsv(results, csvFile);
+            System.out.println("Wrote " + csvFile);
+        }
+        if (thresholdsFile != null) {
+            List<String> failures = checkThresholds(results, loadThresholds(thresholdsFile));
+            for (String failure : failures) {
+                System.err.println("FAIL " + failure);
+            }
+            if (!failures.isEmpty()) {
+                System.exit(1);
+            }
+            System.out.println("All strategies within " + thresholdsFile);
+        }
+    }
+
+    private static Properties loadThresholds(File thresholdsFile) throws IOException {
+        Properties thresholds = new Properties();
+        try (InputStream input = new FileInputStream(thresholdsFile)) {
+            thresholds.load(input);
+        }
+        return thresholds;
+    }
+
+    /**
+     * @return A description of every threshold a strategy exceeded, empty if none was.
+     */
+    static List<String> checkThresholds(List<Totals> results, Properties thresholds) {
+        List<String> failures = new ArrayList<>();
+        for (String key : thresholds.stringPropertyNames()) {
+            int dot = key.indexOf('.');
+            if (dot < 0) {
+                throw new IllegalArgumentException("Threshold without a strategy: " + key);
+            }
+            String strategy = key.substring(0, dot);
+            String name = key.substring(dot + 1);
+            double limit = Double.parseDouble(thresholds.getProperty(key).trim());
+            Totals totals = null;
+            for (Totals candidate : results) {
+                if (candidate.strategy.name().equals(strategy)) {
+                    totals = candidate;
+                }
+            }
+            if (totals == null) {
+                throw new IllegalArgumentException("Unknown strategy in threshold " + key);
+            }
+            double value;
+            boolean exceeded;
+            switch (name) {
+                case MAX_FULL_ENCODES:
+                    value = totals.perImage(totals.fullEncodes);
+                    exceeded = value > limit;
+                    break;
+                case MAX_PROBE_ENCODES:
+                    value = totals.perImage(totals.probeEncodes);
+                    exceeded = value > limit;
+                    break;
+                case MIN_MEAN_QUALITY:
+                    value = totals.perImage(totals.qualitySum);
+                    exceeded = value < limit;
+                    break;
+                case MAX_MISSED_TARGETS:
+                    value = totals.missedTargets;
+                    exceeded = value > limit;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown threshold " + key);
+            }
+            if (exceeded) {
+                failures.add(String.format(Locale.US, "%s: %.2f, limit %s", key, value, thresholds.getProperty(key).trim()));
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Loads every image in the directory as opaque RGB, in name order so runs are comparable.
+     */
+    private static List<ImageIoEncoder> loadCorpus(File corpusDir) throws IOException {
+        File[] files = corpusDir.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + corpusDir);
+        }
+        Arrays.sort(files);
+        List<ImageIoEncoder> corpus = new ArrayList<>();
+        for (File file : files) {
+            BufferedImage image = file.isFile() ? ImageIO.read(file) : null;
+            if (image == null) {
+                continue; // Not an image ImageIO can read
+            }
+            if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+                BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = rgb.createGraphics();
+                try {
+                    graphics.drawImage(image, 0, 0, null);
+                } finally {
+                    graphics.dispose();
+                }
+                image = rgb;
+            }
+            corpus.add(new ImageIoEncoder(image));
+        }
+        if (corpus.isEmpty()) {
+            throw new IOException("No images in " + corpusDir);
+        }
+        return corpus;
+    }
+
+    private static void measure(ImageCompressor compressor, ImageIoEncoder image, Totals totals) throws IOException {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        ImageCompressor.Result result = compressor.compress(image);
+        long wallNanos = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+
+        totals.compressions++;
+        totals.fullEncodes += result.getEncodeCount();
+        totals.probeEncodes += result.getProbeEncodeCount();
+        totals.wallNanos += wallNanos;
+        totals.bytesProduced += result.getSize();
+        totals.qualitySum += result.getQuality();
+        if (!result.isWithinTarget()) {
+            totals.missedTargets++;
+        }
+        if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+            totals.bytesAllocated = Math.max(0, totals.bytesAllocated) + (allocatedAfter - allocatedBefore);
+        }
+        result.release();
+    }
+
+    /**
+     * @return The bytes allocated by the current thread so far, or -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspotThreads = (com.sun.management.ThreadMXBean) threads;
+            if (hotspotThreads.isThreadAllocatedMemorySupported() && hotspotThreads.isThreadAllocatedMemoryEnabled()) {
+                return hotspotThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static void printReport(List<Totals> results) {
+        System.out.printf(Locale.US, "%-8s %9s %9s %10s %10s %8s %12s %12s %7s%n",
+                "strategy", "encodes", "probes", "ms/image", "KB/image", "quality", "alloc MB/img", "alloc MB/s", "missed");
+        for (Totals totals : results) {
+            double seconds = totals.wallNanos / 1e9;
+            System.out.printf(Locale.US, "%-8s %9.2f %9.2f %10.1f %10.1f %8.1f %12s %12s %7d%n",
+                    totals.strategy,
+                    totals.perImage(totals.fullEncodes),
+                    totals.perImage(totals.probeEncodes),
+                    totals.perImage(totals.wallNanos) / 1e6,
+                    totals.perImage(totals.bytesProduced) / 1024,
+                    totals.perImage(totals.qualitySum),
+                    totals.bytesAllocated >= 0 ? String.format(Locale.US, "%.1f", totals.perImage(totals.bytesAllocated) / (1024 * 1024)) : "n/a",
+                    totals.bytesAllocated >= 0 && seconds > 0 ? String.format(Locale.US, "%.1f", totals.bytesAllocated / (1024.0 * 1024) / seconds) : "n/a",
+                    totals.missedTargets);
+        }
+        System.out.println("Buffer pool: " + ByteBufferPool.getInstance());
+    }
+
+    private static void writeCsv(List<Totals> results, File csvFile) throws IOException {
+        File parent = csvFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        try (PrintWriter writer = new PrintWriter(csvFile, "UTF-8")) {
+            writer.println("strategy,compressions,full_encodes_per_image,probe_encodes_per_image,ms_per_image,"
+                    + "bytes_per_image,mean_quality,allocated_bytes_per_image,allocated_mb_per_second,missed_targets");
+            for (Totals totals : results) {
+                double seconds = totals.wallNanos / 1e9;
+                writer.printf(Locale.US, "%s,%d,%.3f,%.3f,%.3f,%.0f,%.2f,%.0f,%.2f,%d%n",
+                        totals.strategy, totals.compressions,
+                        totals.perImage(totals.fullEncodes), totals.perImage(totals.probeEncodes),
+                        totals.perImage(totals.wallNanos) / 1e6, totals.perImage(totals.bytesProduced),
+                        totals.perImage(totals.qualitySum),
+                        totals.bytesAllocated >= 0 ? totals.perImage(totals.bytesAllocated) : -1.0,
+                        totals.bytesAllocated >= 0 && seconds > 0 ? totals.bytesAllocated / (1024.0 * 1024) / seconds : -1.0,
+                        totals.missedTargets);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.camera;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates the checked-in benchmark corpus: five synthetic 1280x960 scenes that stand in for
+ * the kinds of photos the app compresses, from smooth to noisy and from soft to sharp-edged.
+ * <p>
+ * Every scene is drawn from a fixed seed, so the same JDK writes the same files again; a
+ * different JDK may encode slightly different bytes, so regenerate and commit the corpus together
+ * with any change to the benchmark thresholds.
+ * <p>
+ * Usage: {@code CorpusGenerator <output dir>}
+ */
+public class CorpusGenerator {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 960;
+    private static final float JPEG_QUALITY = 0.92f; // Roughly what a camera writes
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: CorpusGenerator <output dir>");
+            System.exit(2);
+        }
+        File outputDir = new File(args[0]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Unable to create " + outputDir);
+        }
+        save(landscape(), new File(outputDir, "landscape.jpg"));
+        save(texture(), new File(outputDir, "texture.jpg"));
+        save(portrait(), new File(outputDir, "portrait.jpg"));
+        save(document(), new File(outputDir, "document.jpg"));
+        save(night(), new File(outputDir, "night.jpg"));
+        System.out.println("Wrote the corpus to " + outputDir);
+    }
+
+    /**
+     * Sky with clouds over hills covered in foliage: large smooth areas next to fine detail.
+     */
+    private static BufferedImage landscape() {
+        Random random = new Random(1);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        double[][] foliage = fractalNoise(random, WIDTH, HEIGHT, 6, 128);
+        double[][] clouds = fractalNoise(random, WIDTH, HEIGHT, 5, 256);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double horizon = HEIGHT * 0.45 + 60 * Math.sin(x / 170.0) + 40 * foliage[y][x];
+                int rgb;
+                if (y < horizon) {
+                    double t = y / horizon;
+                    double cloud = Math.max(0, clouds[y][x] - 0.5) * 2;
+                    rgb = new Color(clamp(90 + 80 * t + 150 * cloud), clamp(140 + 70 * t + 110 * cloud),
+                            clamp(220 + 20 * t + 30 * cloud)).getRGB();
+                } else {
+                    double v = foliage[y][x];
+                    double grain = random.nextGaussian() * 10;
+                    rgb = new Color(clamp(40 + 90 * v + grain), clamp(80 + 110 * v + grain), clamp(30 + 50 * v + grain)).getRGB();
+                }
+                image.setRGB(x, y, rgb);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Gravel-like detail over the whole frame, the hardest case for the size budget.
+     */
+    private static BufferedImage texture() {
+        Random random = new Random(2);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        double[][] noise = fractalNoise(random, WIDTH, HEIGHT, 7, 64);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double v = noise[y][x] * 200 + random.nextGaussian() * 18;
+                image.setRGB(x, y, new Color(clamp(v + 20), clamp(v + 10), clamp(v)).getRGB());
+            }
+        }
+        return image;
+    }
+
+    /**
+     * A subject in front of a blurred background with bokeh, plus sensor noise.
+     */
+    private static BufferedImage portrait() {
+        Random random = new Random(3);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setPaint(new GradientPaint(0, 0, new Color(60, 50, 40), WIDTH, HEIGHT, new Color(170, 140, 110)));
+            graphics.fillRect(0, 0, WIDTH, HEIGHT);
+            for (int i = 0; i < 60; i++) {
+                int size = 30 + random.nextInt(120);
+                graphics.setColor(new Color(200 + random.nextInt(55), 180 + random.nextInt(60), 120 + random.nextInt(80),
+                        40 + random.nextInt(60)));
+                graphics.fillOval(random.nextInt(WIDTH), random.nextInt(HEIGHT), size, size);
+            }
+            graphics.setPaint(new GradientPaint(WIDTH / 2 - 200, 200, new Color(230, 190, 160),
+                    WIDTH / 2 + 200, 700, new Color(170, 120, 95)));
+            graphics.fillOval(WIDTH / 2 - 180, 180, 360, 460);
+            graphics.setColor(new Color(50, 35, 25));
+            graphics.fillArc(WIDTH / 2 - 200, 140, 400, 300, 0, 180);
+            graphics.setColor(new Color(40, 60, 110));
+            graphics.fillRoundRect(WIDTH / 2 - 320, 620, 640, 400, 200, 200);
+        } finally {
+            graphics.dispose();
+        }
+        addNoise(image, random, 6, 0);
+        return image;
+    }
+
+    /**
+     * Lines of text on paper with uneven lighting: sharp edges that ring at low qualities.
+     */
+    private static BufferedImage document() {
+        Random random = new Random(4);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            graphics.setColor(new Color(238, 234, 224));
+            graphics.fillRect(0, 0, WIDTH, HEIGHT);
+            graphics.setColor(new Color(30, 30, 40));
+            graphics.setFont(new Font(Font.SERIF, Font.PLAIN, 22));
+            String[] words = "the quick brown fox jumps over lazy dog camera sensor quality budget encode decode".split(" ");
+            for (int y = 60; y < HEIGHT - 40; y += 34) {
+                StringBuilder line = new StringBuilder();
+                while (line.length() < 95) {
+                    line.append(words[random.nextInt(words.length)]).append(' ');
+                }
+                graphics.drawString(line.toString(), 50, y);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        addNoise(image, random, 4, 15);
+        return image;
+    }
+
+    /**
+     * A dark, noisy street with glowing lights.
+     */
+    private static BufferedImage night() {
+        Random random = new Random(5);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        double[][] noise = fractalNoise(random, WIDTH, HEIGHT, 5, 128);
+        double[][] lights = new double[40][3]; // x, y, radius
+        for (double[] light : lights) {
+            light[0] = random.nextInt(WIDTH);
+            light[1] = HEIGHT * 0.4 + random.nextInt((int) (HEIGHT * 0.5));
+            light[2] = 20 + random.nextInt(60);
+        }
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double v = 15 + 25 * noise[y][x];
+                double glow = 0;
+                for (double[] light : lights) {
+                    double dx = x - light[0];
+                    double dy = y - light[1];
+                    glow += light[2] * light[2] * 2 / (dx * dx + dy * dy + light[2] * light[2] / 4);
+                }
+                double grain = random.nextGaussian() * 9;
+                image.setRGB(x, y, new Color(clamp(v + glow * 1.0 + grain), clamp(v + glow * 0.8 + grain),
+                        clamp(v * 1.3 + glow * 0.4 + grain)).getRGB());
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Adds gray Gaussian noise, and darkens towards the bottom by up to {@code falloff} levels.
+     */
+    private static void addNoise(BufferedImage image, Random random, double sigma, double falloff) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel = image.getRGB(x, y);
+                double n = random.nextGaussian() * sigma - falloff * y / HEIGHT;
+                image.setRGB(x, y, new Color(clamp(((pixel >> 16) & 255) + n), clamp(((pixel >> 8) & 255) + n),
+                        clamp((pixel & 255) + n)).getRGB());
+            }
+        }
+    }
+
+    /**
+     * Smoothly interpolated value noise on a grid of the given cell size, between 0 and 1.
+     */
+    private static double[][] valueNoise(Random random, int width, int height, int cell) {
+        int gridWidth = width / cell + 2;
+        int gridHeight = height / cell + 2;
+        double[][] grid = new double[gridHeight][gridWidth];
+        for (int y = 0; y < gridHeight; y++) {
+            for (int x = 0; x < gridWidth; x++) {
+                grid[y][x] = random.nextDouble();
+            }
+        }
+        double[][] noise = new double[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double fx = (double) x / cell;
+                double fy = (double) y / cell;
+                int ix = (int) fx;
+                int iy = (int) fy;
+                double tx = fx - ix;
+                double ty = fy - iy;
+                tx = tx * tx * (3 - 2 * tx);
+                ty = ty * ty * (3 - 2 * ty);
+                noise[y][x] = (grid[iy][ix] * (1 - tx) + grid[iy][ix + 1] * tx) * (1 - ty)
+                        + (grid[iy + 1][ix] * (1 - tx) + grid[iy + 1][ix + 1] * tx) * ty;
+            }
+        }
+        return noise;
+    }
+
+    /**
+     * Octaves of value noise, each with half the cell size and 0.55 times the weight of the
+     * previous one, normalized to between 0 and 1.
+     */
+    private static double[][] fractalNoise(Random random, int width, int height, int octaves, int baseCell) {
+        double[][] sum = new double[height][width];
+        double amplitude = 1;
+        double total = 0;
+        for (int octave = 0; octave < octaves; octave++) {
+            double[][] noise = valueNoise(random, width, height, Math.max(2, baseCell >> octave));
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    sum[y][x] += amplitude * noise[y][x];
+                }
+            }
+            total += amplitude;
+            amplitude *= 0.55;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                sum[y][x] /= total;
+            }
+        }
+        return sum;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static void save(BufferedImage image, File file) throws IOException {
+        // The image stream does not truncate an existing file
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.camera;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of large byte arrays for encode output, so steady-state compressions reuse the buffers
+ * of earlier ones instead of allocating several megabytes per attempt.
+ * <p>
+ * Buffers are leased as {@link PooledByteArrayOutputStream}s for the duration of a compression
+ * job and returned with {@link PooledByteArrayOutputStream#release()}. Idle buffers are kept up
+ * to a byte budget, beyond which the oldest ones are dropped for the garbage collector.
+ */
+public class ByteBufferPool {
+
+    private static final long MAX_IDLE_BYTES = Math.min(48L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
+    private static final ByteBufferPool INSTANCE = new ByteBufferPool(MAX_IDLE_BYTES);
+
+    private final long maxIdleBytes;
+    private final ArrayDeque<byte[]> idle = new ArrayDeque<>();
+    private long idleBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesAllocated = new AtomicLong();
+    private final AtomicInteger leased = new AtomicInteger();
+
+    ByteBufferPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    public static ByteBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Leases an output buffer, reusing an idle array when there is one.
+     *
+     * @param capacityHint The number of bytes the caller expects to write.
+     */
+    public PooledByteArrayOutputStream lease(int capacityHint) {
+        byte[] buffer = takeIdle(capacityHint);
+        if (buffer != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            bytesAllocated.addAndGet(capacityHint);
+            buffer = new byte[capacityHint];
+        }
+        leased.incrementAndGet();
+        return new PooledByteArrayOutputStream(this, buffer);
+    }
+
+    /**
+     * Picks the smallest idle array that holds the hint, or failing that the largest one, which
+     * will then grow once instead of being allocated from scratch.
+     */
+    private synchronized byte[] takeIdle(int capacityHint) {
+        byte[] best = null;
+        for (byte[] candidate : idle) {
+            if (best == null) {
+                best = candidate;
+            } else if (best.length >= capacityHint) {
+                if (candidate.length >= capacityHint && candidate.length < best.length) {
+                    best = candidate;
+                }
+            } else if (candidate.length > best.length) {
+                best = candidate;
+            }
+        }
+        if (best != null) {
+            removeIdentical(best);
+            idleBytes -= best.length;
+        }
+        return best;
+    }
+
+    private void removeIdentical(byte[] buffer) {
+        Iterator<byte[]> iterator = idle.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == buffer) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    synchronized void release(PooledByteArrayOutputStream stream) {
+        leased.decrementAndGet();
+        byte[] buffer = stream.getBuffer();
+        stream.reset();
+        if (buffer.length > maxIdleBytes) {
+            return;
+        }
+        while (idleBytes + buffer.length > maxIdleBytes && !idle.isEmpty()) {
+            idleBytes -= idle.removeFirst().length;
+        }
+        idle.addLast(buffer);
+        idleBytes += buffer.length;
+    }
+
+    void onGrow(int newLength) {
+        bytesAllocated.addAndGet(newLength);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The total size of the arrays allocated for leases and for growing leased buffers.
+     */
+    public long getBytesAllocated() {
+        return bytesAllocated.get();
+    }
+
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /**
+     * @return The number of buffers leased and not yet released; anything above zero once every
+     * compression has finished is a leak.
+     */
+    public int getLeasedCount() {
+        return leased.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d hits, %d misses, %d KB allocated, %d KB idle",
+                getHits(), getMisses(), getBytesAllocated() / 1024, getIdleBytes() / 1024);
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.camera;
+
+import java.util.Locale;
+
+/**
+ * Process-wide counters for {@link ImageCompressor}, used to judge how far quality prediction
+ * can be trusted: how many full encodes compressions take, and how far off the predicted size
+ * of the first full encode was.
+ */
+public class CompressionMetrics {
+
+    private static final CompressionMetrics INSTANCE = new CompressionMetrics();
+
+    private long compressions;
+    private long fullEncodes;
+    private long probeEncodes;
+    private long predictions;
+    private long corrections; // Predictions that needed more than one full encode
+    private double absPredictionErrorSum;
+    private double maxAbsPredictionError;
+
+    public static CompressionMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    synchronized void record(ImageCompressor.Result result) {
+        compressions++;
+        fullEncodes += result.getEncodeCount();
+        probeEncodes += result.getProbeEncodeCount();
+        double error = result.getPredictionError();
+        if (!Double.isNaN(error)) {
+            predictions++;
+            if (result.getEncodeCount() > 1) {
+                corrections++;
+            }
+            absPredictionErrorSum += Math.abs(error);
+            maxAbsPredictionError = Math.max(maxAbsPredictionError, Math.abs(error));
+        }
+    }
+
+    public synchronized double getAverageFullEncodes() {
+        return compressions > 0 ? (double) fullEncodes / compressions : 0;
+    }
+
+    public synchronized double getMeanAbsPredictionError() {
+        return predictions > 0 ? absPredictionErrorSum / predictions : 0;
+    }
+
+    public synchronized double getMaxAbsPredictionError() {
+        return maxAbsPredictionError;
+    }
+
+    /**
+     * @return The share of predictions whose first full encode missed the target.
+     */
+    public synchronized double getCorrectionRate() {
+        return predictions > 0 ? (double) corrections / predictions : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "%d compressions, %.2f full encodes avg, %d probe encodes\n"
+                        + "Prediction error: %.1f%% mean, %.1f%% max, %.0f%% corrected",
+                compressions, getAverageFullEncodes(), probeEncodes,
+                getMeanAbsPredictionError() * 100, getMaxAbsPredictionError() * 100, getCorrectionRate() * 100);
+    }
+}
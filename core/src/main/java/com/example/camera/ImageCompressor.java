@@ -0,0 +1,434 @@
+package com.example.camera;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses an image, looking for the highest quality whose output fits a target size.
+ * <p>
+ * The image and its codec are behind {@link ImageEncoder}, so the search itself is plain Java
+ * and can be measured off the device.
+ * <p>
+ * With {@link Strategy#BISECT} the quality range is bisected instead of walked down in fixed
+ * steps, so the number of full encodes grows with log(steps) rather than with the number of
+ * steps. With {@link Strategy#PREDICT} a downsampled probe is encoded at two qualities first,
+ * the size-vs-quality curve is fitted and scaled up to the full resolution, and a single full
+ * encode is made at the predicted quality; further encodes happen only if that one misses the
+ * target.
+ * <p>
+ * Either way the full encodes are capped by {@code maxEncodes}. While nothing fits, the search
+ * keeps the last encode of the budget for the minimum quality, the smallest output it may
+ * return, so falling back to it never takes the count past the cap.
+ * <p>
+ * Encode output goes into buffers leased from the {@link ByteBufferPool}, and the result hands
+ * its buffer to the caller without copying; callers must {@link Result#release()} it once the
+ * bytes are stored.
+ * <p>
+ * The search checks the interrupt flag of the calling thread before every full encode, so a
+ * compression running in a cancelled job stops between encodes with an {@link InterruptedIOException}.
+ * However the search ends, by cancellation or by the encoder throwing, every buffer it leased is
+ * returned to the pool.
+ */
+public class ImageCompressor {
+
+    public static final int DEFAULT_MAX_QUALITY = 100;
+    public static final int DEFAULT_MAX_ENCODES = 8;
+
+    // Probe encodes for Strategy.PREDICT
+    private static final int PROBE_SCALE = 4; // The probe has 1/16 of the pixels
+    private static final int PROBE_MIN_DIMENSION = 64; // Smaller probes are too noisy to fit
+    private static final int PROBE_HIGH_QUALITY = 90;
+    private static final int PROBE_LOW_QUALITY = 50;
+    private static final double PREDICTION_HEADROOM = 0.95; // Aim slightly under the target
+
+    /**
+     * How the quality is chosen.
+     */
+    public enum Strategy {
+        /** Bisect the quality range with full-resolution encodes. */
+        BISECT,
+        /** Predict the quality from low-resolution probe encodes, then correct only if needed. */
+        PREDICT
+    }
+
+    private final long targetSizeBytes;
+    private final int minQuality;
+    private final int maxQuality;
+    private final int maxEncodes;
+    private final Strategy strategy;
+    private final ByteBufferPool bufferPool = ByteBufferPool.getInstance();
+
+    /**
+     * @param targetSizeBytes The maximum size of the compressed image in bytes.
+     * @param minQuality      The lowest quality the search may go down to.
+     */
+    public ImageCompressor(long targetSizeBytes, int minQuality) {
+        this(targetSizeBytes, minQuality, Strategy.BISECT);
+    }
+
+    /**
+     * @param targetSizeBytes The maximum size of the compressed image in bytes.
+     * @param minQuality      The lowest quality the search may go down to.
+     * @param strategy        How the quality is chosen.
+     */
+    public ImageCompressor(long targetSizeBytes, int minQuality, Strategy strategy) {
+        this(targetSizeBytes, minQuality, DEFAULT_MAX_QUALITY, DEFAULT_MAX_ENCODES, strategy);
+    }
+
+    /**
+     * @param targetSizeBytes The maximum size of the compressed image in bytes.
+     * @param minQuality      The lowest quality the search may go down to.
+     * @param maxQuality      The highest quality, tried first when bisecting.
+     * @param maxEncodes      The maximum number of full encodes, including the one at the minimum
+     *                        quality when nothing above it fits.
+     * @param strategy        How the quality is chosen.
+     */
+    public ImageCompressor(long targetSizeBytes, int minQuality, int maxQuality, int maxEncodes, Strategy strategy) {
+        if (targetSizeBytes <= 0) {
+            throw new IllegalArgumentException("targetSizeBytes must be positive: " + targetSizeBytes);
+        }
+        if (minQuality < 0 || maxQuality > 100 || minQuality > maxQuality) {
+            throw new IllegalArgumentException("Invalid quality range: " + minQuality + ".." + maxQuality);
+        }
+        if (maxEncodes < 1) {
+            throw new IllegalArgumentException("maxEncodes must be at least 1: " + maxEncodes);
+        }
+        this.targetSizeBytes = targetSizeBytes;
+        this.minQuality = minQuality;
+        this.maxQuality = maxQuality;
+        this.maxEncodes = maxEncodes;
+        this.strategy = strategy;
+    }
+
+    public long getTargetSizeBytes() {
+        return targetSizeBytes;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Compresses the image.
+     *
+     * @param image The image to compress.
+     * @return The compressed bytes along with the chosen quality and the number of encodes it took.
+     */
+    public Result compress(ImageEncoder image) throws IOException {
+        Result result = strategy == Strategy.PREDICT ? compressPredicted(image) : compressBisected(image);
+        CompressionMetrics.getInstance().record(result);
+        return result;
+    }
+
+    private Result compressBisected(ImageEncoder image) throws IOException {
+        Search search = new Search(image);
+        try {
+            // Most images already fit at the maximum quality, so try it before searching
+            if (!search.encode(maxQuality)) {
+                search.bisect(minQuality, maxQuality - 1);
+            }
+            return search.finish(0, Double.NaN);
+        } catch (Throwable t) {
+            search.release(); // Cancelled, or the encoder failed
+            throw t;
+        }
+    }
+
+    private Result compressPredicted(ImageEncoder image) throws IOException {
+        QualityModel model = fitQualityModel(image);
+        if (model == null) {
+            return compressBisected(image);
+        }
+
+        Search search = new Search(image);
+        try {
+            int predictedQuality = clampQuality(model.qualityFor(targetSizeBytes * PREDICTION_HEADROOM));
+            double predictedSize = model.sizeAt(predictedQuality);
+            boolean fits = search.encode(predictedQuality);
+            double predictionError = (search.lastSize - predictedSize) / predictedSize;
+
+            if (!fits) {
+                // Correct the model by how far it was off at this quality and try once more,
+                // then fall back to bisecting what is left of the range
+                double correction = search.lastSize / predictedSize;
+                int correctedQuality = clampQuality(model.qualityFor(targetSizeBytes * PREDICTION_HEADROOM / correction));
+                if (correctedQuality < predictedQuality && search.canSearch() && search.encode(correctedQuality)) {
+                    return search.finish(model.probeEncodes, predictionError);
+                }
+                int high = Math.min(correctedQuality, predictedQuality) - 1;
+                search.bisect(minQuality, high);
+            }
+            return search.finish(model.probeEncodes, predictionError);
+        } catch (Throwable t) {
+            search.release(); // Cancelled, or the encoder failed
+            throw t;
+        }
+    }
+
+    private int clampQuality(int quality) {
+        return Math.max(minQuality, Math.min(maxQuality, quality));
+    }
+
+    /**
+     * Encodes a downsampled copy of the image at two qualities and fits log(size) as a linear
+     * function of quality, scaled up by the pixel ratio to the full resolution.
+     *
+     * @return The fitted model, or null if the image is too small to probe or the fit is unusable.
+     */
+    private QualityModel fitQualityModel(ImageEncoder image) throws IOException {
+        int probeWidth = image.getWidth() / PROBE_SCALE;
+        int probeHeight = image.getHeight() / PROBE_SCALE;
+        if (probeWidth < PROBE_MIN_DIMENSION || probeHeight < PROBE_MIN_DIMENSION) {
+            return null;
+        }
+
+        ImageEncoder probe = image.scaled(probeWidth, probeHeight);
+        PooledByteArrayOutputStream stream = bufferPool.lease(probeWidth * probeHeight);
+        try {
+            probe.encode(PROBE_HIGH_QUALITY, stream);
+            int highSize = stream.size();
+            stream.reset();
+            probe.encode(PROBE_LOW_QUALITY, stream);
+            int lowSize = stream.size();
+            if (highSize <= lowSize || lowSize <= 0) {
+                return null;
+            }
+
+            double pixelRatio = ((double) image.getWidth() * image.getHeight()) / ((double) probeWidth * probeHeight);
+            double logHighSize = Math.log(highSize * pixelRatio);
+            double slope = (Math.log(highSize) - Math.log(lowSize)) / (PROBE_HIGH_QUALITY - PROBE_LOW_QUALITY);
+            return new QualityModel(PROBE_HIGH_QUALITY, logHighSize, slope, 2);
+        } finally {
+            stream.release();
+            probe.release();
+        }
+    }
+
+    /**
+     * log(size) = logSizeAtAnchor + slope * (quality - anchorQuality)
+     */
+    private static class QualityModel {
+        final int anchorQuality;
+        final double logSizeAtAnchor;
+        final double slope;
+        final int probeEncodes;
+
+        QualityModel(int anchorQuality, double logSizeAtAnchor, double slope, int probeEncodes) {
+            this.anchorQuality = anchorQuality;
+            this.logSizeAtAnchor = logSizeAtAnchor;
+            this.slope = slope;
+            this.probeEncodes = probeEncodes;
+        }
+
+        double sizeAt(int quality) {
+            return Math.exp(logSizeAtAnchor + slope * (quality - anchorQuality));
+        }
+
+        int qualityFor(double size) {
+            return (int) Math.floor(anchorQuality + (Math.log(size) - logSizeAtAnchor) / slope);
+        }
+    }
+
+    /**
+     * The state of one compression: the encode buffers, the best fitting candidate so far and
+     * the number of full encodes.
+     */
+    private class Search {
+        final ImageEncoder image;
+        final int capacityHint = (int) Math.min(Integer.MAX_VALUE - 8, targetSizeBytes);
+        PooledByteArrayOutputStream scratch = bufferPool.lease(capacityHint);
+        PooledByteArrayOutputStream best;
+        int bestQuality = -1;
+        int lastQuality = -1;
+        int lastSize;
+        int encodes;
+
+        Search(ImageEncoder image) {
+            this.image = image;
+        }
+
+        /**
+         * Encodes at the given quality and keeps the output if it is the best fit so far. The two
+         * streams are swapped rather than copied, so the best candidate survives the next encode.
+         *
+         * @return Whether the output fits the target size.
+         */
+        boolean encode(int quality) throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Compression cancelled after " + encodes + " encodes");
+            }
+            scratch.reset();
+            image.encode(quality, scratch);
+            encodes++;
+            lastQuality = quality;
+            lastSize = scratch.size();
+            if (lastSize > targetSizeBytes) {
+                return false;
+            }
+            if (quality > bestQuality) {
+                PooledByteArrayOutputStream previous = best;
+                best = scratch;
+                bestQuality = quality;
+                scratch = previous != null ? previous : bufferPool.lease(capacityHint);
+            }
+            return true;
+        }
+
+        /**
+         * @return Whether the encode budget allows another search encode. While nothing fits, the
+         * last encode of the budget is kept for the minimum quality.
+         */
+        boolean canSearch() {
+            return encodes < (best == null ? maxEncodes - 1 : maxEncodes);
+        }
+
+        /**
+         * Bisects [low, high] for the highest quality that fits, within the encode budget.
+         */
+        void bisect(int low, int high) throws IOException {
+            while (low <= high && canSearch()) {
+                int mid = (low + high) >>> 1;
+                if (encode(mid)) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+        }
+
+        /**
+         * Returns the buffers the search still holds to the pool when it is abandoned, whether it
+         * was cancelled or an encode failed. Does nothing once the result is built.
+         */
+        void release() {
+            if (scratch != null) {
+                scratch.release();
+                scratch = null;
+            }
+            if (best != null) {
+                best.release();
+                best = null;
+            }
+        }
+
+        /**
+         * Builds the result, which takes over the buffer it holds; the other one goes back to the pool.
+         */
+        Result finish(int probeEncodes, double predictionError) throws IOException {
+            // Nothing fits: keep the smallest output we are allowed to produce, budget permitting;
+            // only a budget of a single encode runs out before it
+            if (best == null && lastQuality != minQuality && encodes < maxEncodes) {
+                encode(minQuality);
+            }
+            Result result = best != null
+                    ? new Result(best, bestQuality, encodes, probeEncodes, predictionError, true)
+                    : new Result(scratch, lastQuality, encodes, probeEncodes, predictionError, false);
+            if (best != null) {
+                scratch.release();
+            }
+            scratch = null;
+            best = null;
+            return result;
+        }
+    }
+
+    /**
+     * The outcome of a compression.
+     */
+    public static class Result {
+        private PooledByteArrayOutputStream output;
+        private final int size;
+        private final int quality;
+        private final int encodeCount;
+        private final int probeEncodeCount;
+        private final double predictionError;
+        private final boolean withinTarget;
+
+        Result(PooledByteArrayOutputStream output, int quality, int encodeCount, int probeEncodeCount,
+               double predictionError, boolean withinTarget) {
+            this.output = output;
+            this.size = output.size();
+            this.quality = quality;
+            this.encodeCount = encodeCount;
+            this.probeEncodeCount = probeEncodeCount;
+            this.predictionError = predictionError;
+            this.withinTarget = withinTarget;
+        }
+
+        /**
+         * @return The backing array of the compressed image, valid for {@link #getSize()} bytes
+         * until {@link #release()} is called.
+         */
+        public synchronized byte[] getBuffer() {
+            if (output == null) {
+                throw new IllegalStateException("Result already released");
+            }
+            return output.getBuffer();
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return A copy of the compressed image, for callers that need an exact-size array.
+         */
+        public byte[] getBytes() {
+            byte[] bytes = new byte[size];
+            System.arraycopy(getBuffer(), 0, bytes, 0, size);
+            return bytes;
+        }
+
+        /**
+         * Writes the compressed image without copying it.
+         */
+        public void writeTo(OutputStream outputStream) throws IOException {
+            outputStream.write(getBuffer(), 0, size);
+        }
+
+        public int getQuality() {
+            return quality;
+        }
+
+        /**
+         * @return The number of full-resolution encodes.
+         */
+        public int getEncodeCount() {
+            return encodeCount;
+        }
+
+        /**
+         * @return The number of low-resolution probe encodes made to predict the quality.
+         */
+        public int getProbeEncodeCount() {
+            return probeEncodeCount;
+        }
+
+        /**
+         * @return (actual - predicted) / predicted size of the first full encode, or NaN if the
+         * quality was not predicted.
+         */
+        public double getPredictionError() {
+            return predictionError;
+        }
+
+        /**
+         * @return false if nothing fit the target size; the output is then the last encode, at the
+         * minimum quality unless a single-encode budget was spent above it.
+         */
+        public boolean isWithinTarget() {
+            return withinTarget;
+        }
+
+        /**
+         * Returns the buffer to the pool. Safe to call more than once.
+         */
+        public synchronized void release() {
+            if (output != null) {
+                output.release();
+                output = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.camera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An image together with the codec that encodes it at a given quality.
+ * <p>
+ * {@link ImageCompressor} only decides which qualities to try; the pixels and the codec stay
+ * behind this interface, so the same search runs on Android bitmaps in the app and on plain
+ * JVM images in the benchmark.
+ */
+public interface ImageEncoder {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Encodes the image.
+     *
+     * @param quality The quality, between 0 and 100.
+     * @param output  Receives the encoded bytes.
+     */
+    void encode(int quality, OutputStream output) throws IOException;
+
+    /**
+     * @return A filtered copy of the image at the given size, encoded the same way. It must be
+     * {@link #release() released} once it is no longer needed.
+     */
+    ImageEncoder scaled(int width, int height);
+
+    /**
+     * Frees the pixels of an image returned by {@link #scaled}. Does nothing for an image the
+     * caller still owns, e.g. when scaling returned the image itself.
+     */
+    void release();
+}
@@ -0,0 +1,55 @@
+package com.example.camera;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A growable output buffer leased from a {@link ByteBufferPool}.
+ * <p>
+ * Unlike {@link ByteArrayOutputStream#toByteArray()}, {@link #getBuffer()} exposes the backing
+ * array without copying it; only the first {@link #size()} bytes are valid. Every time the buffer
+ * has to grow, the new array is reported to the pool so its allocation counters stay accurate.
+ */
+public class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+
+    private final ByteBufferPool pool;
+
+    PooledByteArrayOutputStream(ByteBufferPool pool, byte[] buffer) {
+        super(0);
+        this.pool = pool;
+        this.buf = buffer;
+    }
+
+    /**
+     * @return The backing array. Only valid until the stream is written to again or released.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        byte[] before = buf;
+        super.write(b);
+        onWrite(before);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        byte[] before = buf;
+        super.write(b, off, len);
+        onWrite(before);
+    }
+
+    private void onWrite(byte[] before) {
+        if (buf != before) {
+            pool.onGrow(buf.length);
+        }
+    }
+
+    /**
+     * Returns the backing array to the pool. The stream must not be used afterwards.
+     */
+    public void release() {
+        pool.release(this);
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ByteBufferPoolTest {
+
+    @Test
+    public void releasedBufferIsReused() {
+        ByteBufferPool pool = new ByteBufferPool(1024 * 1024);
+        PooledByteArrayOutputStream first = pool.lease(1000);
+        byte[] buffer = first.getBuffer();
+        first.write(new byte[10], 0, 10);
+        first.release();
+
+        PooledByteArrayOutputStream second = pool.lease(1000);
+        assertSame(buffer, second.getBuffer());
+        assertEquals(0, second.size());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(1000, pool.getBytesAllocated());
+        second.release();
+    }
+
+    @Test
+    public void smallestBufferThatFitsIsPicked() {
+        ByteBufferPool pool = new ByteBufferPool(1024 * 1024);
+        PooledByteArrayOutputStream large = pool.lease(8000);
+        PooledByteArrayOutputStream medium = pool.lease(4000);
+        PooledByteArrayOutputStream small = pool.lease(1000);
+        byte[] mediumBuffer = medium.getBuffer();
+        byte[] largeBuffer = large.getBuffer();
+        large.release();
+        medium.release();
+        small.release();
+
+        assertSame(mediumBuffer, pool.lease(2000).getBuffer());
+        // Nothing fits any more, so the largest one is grown instead of allocating from scratch
+        assertSame(largeBuffer, pool.lease(20000).getBuffer());
+    }
+
+    @Test
+    public void oldestBuffersAreDroppedOverTheBudget() {
+        ByteBufferPool pool = new ByteBufferPool(5000);
+        PooledByteArrayOutputStream first = pool.lease(3000);
+        PooledByteArrayOutputStream second = pool.lease(3000);
+        PooledByteArrayOutputStream tooLarge = pool.lease(6000);
+        byte[] secondBuffer = second.getBuffer();
+        first.release();
+        second.release();
+        tooLarge.release();
+
+        assertEquals(3000, pool.getIdleBytes());
+        assertSame(secondBuffer, pool.lease(1).getBuffer());
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void leasedCountFollowsReleases() {
+        ByteBufferPool pool = new ByteBufferPool(1024 * 1024);
+        PooledByteArrayOutputStream first = pool.lease(100);
+        PooledByteArrayOutputStream second = pool.lease(100);
+        assertEquals(2, pool.getLeasedCount());
+        first.release();
+        second.release();
+        assertEquals(0, pool.getLeasedCount());
+    }
+
+    @Test
+    public void growingIsCountedAsAllocation() {
+        ByteBufferPool pool = new ByteBufferPool(1024 * 1024);
+        PooledByteArrayOutputStream stream = pool.lease(10);
+        stream.write(new byte[100], 0, 100);
+        assertEquals(10 + stream.getBuffer().length, pool.getBytesAllocated());
+        stream.release();
+    }
+}
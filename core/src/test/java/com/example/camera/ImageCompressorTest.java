@@ -0,0 +1,302 @@
+package com.example.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ImageCompressorTest {
+
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+    private static final long TARGET_BYTES = 500_000; // Fits up to quality 63 on the fake encoder
+    private static final int MIN_QUALITY = 10;
+
+    private int leasedBefore;
+
+    @Before
+    public void setUp() {
+        leasedBefore = ByteBufferPool.getInstance().getLeasedCount();
+    }
+
+    @After
+    public void tearDown() {
+        Thread.interrupted(); // Never leak an interrupt into the next test
+    }
+
+    @Test
+    public void bisectStopsAtTheEncodeCap() throws IOException {
+        FakeEncoder image = new FakeEncoder(WIDTH, HEIGHT, 1.0);
+        ImageCompressor compressor = new ImageCompressor(TARGET_BYTES, MIN_QUALITY, 100, 4, ImageCompressor.Strategy.BISECT);
+
+        ImageCompressor.Result result = compressor.compress(image);
+        try {
+            assertEquals(4, result.getEncodeCount());
+            assertEquals(4, image.fullEncodes);
+            assertTrue(result.isWithinTarget());
+            assertTrue(result.getSize() <= TARGET_BYTES);
+            assertTrue(result.getQuality() <= 63);
+        } finally {
+            result.release();
+        }
+    }
+
+    @Test
+    public void bisectFindsTheHighestQualityThatFits() throws IOException {
+        ImageCompressor compressor = new ImageCompressor(TARGET_BYTES, MIN_QUALITY, ImageCompressor.Strategy.BISECT);
+
+        ImageCompressor.Result result = compressor.compress(new FakeEncoder(WIDTH, HEIGHT, 1.0));
+        try {
+            assertEquals(63, result.getQuality());
+            assertEquals(FakeEncoder.sizeAt(WIDTH, HEIGHT, 63), result.getSize());
+            assertTrue(result.getEncodeCount() <= ImageCompressor.DEFAULT_MAX_ENCODES);
+            assertTrue(Double.isNaN(result.getPredictionError()));
+        } finally {
+            result.release();
+        }
+    }
+
+    @Test
+    public void maxQualityThatFitsTakesOneEncode() throws IOException {
+        ImageCompressor compressor = new ImageCompressor(FakeEncoder.sizeAt(WIDTH, HEIGHT, 100), MIN_QUALITY,
+                ImageCompressor.Strategy.BISECT);
+
+        ImageCompressor.Result result = compressor.compress(new FakeEncoder(WIDTH, HEIGHT, 1.0));
+        try {
+            assertEquals(100, result.getQuality());
+            assertEquals(1, result.getEncodeCount());
+        } finally {
+            result.release();
+        }
+    }
+
+    @Test
+    public void nothingFitsReturnsTheFloorOutsideTheTarget() throws IOException {
+        long target = FakeEncoder.sizeAt(WIDTH, HEIGHT, MIN_QUALITY) / 2;
+        ImageCompressor compressor = new ImageCompressor(target, MIN_QUALITY, ImageCompressor.Strategy.BISECT);
+
+        ImageCompressor.Result result = compressor.compress(new FakeEncoder(WIDTH, HEIGHT, 1.0));
+        try {
+            assertFalse(result.isWithinTarget());
+            assertEquals(MIN_QUALITY, result.getQuality());
+            assertEquals(FakeEncoder.sizeAt(WIDTH, HEIGHT, MIN_QUALITY), result.getSize());
+            assertTrue(result.getEncodeCount() <= ImageCompressor.DEFAULT_MAX_ENCODES);
+        } finally {
+            result.release();
+        }
+    }
+
+    @Test
+    public void floorEncodeCountsAgainstTheCap() throws IOException {
+        long target = FakeEncoder.sizeAt(WIDTH, HEIGHT, MIN_QUALITY) / 2;
+        for (int maxEncodes = 2; maxEncodes <= 5; maxEncodes++) {
+            ImageCompressor compressor = new ImageCompressor(target, MIN_QUALITY, 100, maxEncodes, ImageCompressor.Strategy.BISECT);
+
+            ImageCompressor.Result result = compressor.compress(new FakeEncoder(WIDTH, HEIGHT, 1.0));
+            try {
+                assertFalse(result.isWithinTarget());
+                assertEquals(MIN_QUALITY, result.getQuality());
+                assertEquals(maxEncodes, result.getEncodeCount()); // The last one at the floor
+            } finally {
+                result.release();
+            }
+        }
+    }
+
+    @Test
+    public void singleEncodeBudgetReturnsTheMaxQualityWhenNothingFits() throws IOException {
+        long target = FakeEncoder.sizeAt(WIDTH, HEIGHT, MIN_QUALITY) / 2;
+        ImageCompressor compressor = new ImageCompressor(target, MIN_QUALITY, 100, 1, ImageCompressor.Strategy.BISECT);
+
+        ImageCompressor.Result result = compressor.compress(new FakeEncoder(WIDTH, HEIGHT, 1.0));
+        try {
+            assertFalse(result.isWithinTarget());
+            assertEquals(100, result.getQuality());
+            assertEquals(1, result.getEncodeCount());
+        } finally {
+            result.release();
+        }
+    }
+
+    @Test
+    public void predictionNeverExceedsTheCap() throws IOException {
+        // The probe underestimates so badly that nothing it predicts fits
+        long target = FakeEncoder.sizeAt(WIDTH, HEIGHT, MIN_QUALITY) / 2;
+        for (int maxEncodes = 1; maxEncodes <= 4; maxEncodes++) {
+            ImageCompressor compressor = new ImageCompressor(target, MIN_QUALITY, 100, maxEncodes, ImageCompressor.Strategy.PREDICT);
+
+            ImageCompressor.Result result = compressor.compress(new FakeEncoder(WIDTH, HEIGHT, 0.1));
+            try {
+                assertFalse(result.isWithinTarget());
+                assertTrue(result.getEncodeCount() <= maxEncodes);
+            } finally {
+                result.release();
+            }
+        }
+    }
+
+    @Test
+    public void accuratePredictionTakesOneEncode() throws IOException {
+        ImageCompressor compressor = new ImageCompressor(TARGET_BYTES, MIN_QUALITY, ImageCompressor.Strategy.PREDICT);
+
+        ImageCompressor.Result result = compressor.compress(new FakeEncoder(WIDTH, HEIGHT, 1.0));
+        try {
+            assertTrue(result.isWithinTarget());
+            assertEquals(1, result.getEncodeCount());
+            assertEquals(2, result.getProbeEncodeCount());
+            assertTrue(Math.abs(result.getPredictionError()) < 0.05);
+        } finally {
+            result.release();
+        }
+    }
+
+    @Test
+    public void missedPredictionIsCorrectedWithOneMoreEncode() throws IOException {
+        // The probe underestimates the full-size output by 30%, so the first full encode misses
+        ImageCompressor compressor = new ImageCompressor(TARGET_BYTES, MIN_QUALITY, ImageCompressor.Strategy.PREDICT);
+        FakeEncoder image = new FakeEncoder(WIDTH, HEIGHT, 0.7);
+
+        ImageCompressor.Result result = compressor.compress(image);
+        try {
+            assertTrue(result.isWithinTarget());
+            assertEquals(2, result.getEncodeCount());
+            assertTrue(result.getPredictionError() > 0.3);
+            assertTrue(result.getQuality() >= 60); // Corrected, not bisected down from the floor
+        } finally {
+            result.release();
+        }
+    }
+
+    @Test
+    public void smallImageFallsBackToBisecting() throws IOException {
+        ImageCompressor compressor = new ImageCompressor(TARGET_BYTES, MIN_QUALITY, ImageCompressor.Strategy.PREDICT);
+
+        ImageCompressor.Result result = compressor.compress(new FakeEncoder(200, 200, 1.0));
+        try {
+            assertEquals(0, result.getProbeEncodeCount());
+            assertEquals(100, result.getQuality());
+        } finally {
+            result.release();
+        }
+    }
+
+    @Test
+    public void interruptReturnsEveryBufferToThePool() throws IOException {
+        for (ImageCompressor.Strategy strategy : ImageCompressor.Strategy.values()) {
+            // A missed prediction, so both strategies need a second full encode to be cancelled before
+            FakeEncoder image = new FakeEncoder(WIDTH, HEIGHT, 0.7);
+            image.interruptAfterFullEncodes = 1;
+            ImageCompressor compressor = new ImageCompressor(TARGET_BYTES, MIN_QUALITY, strategy);
+            try {
+                compressor.compress(image).release();
+                fail(strategy + " compressed despite the interrupt");
+            } catch (InterruptedIOException expected) {
+                assertTrue(Thread.interrupted()); // The flag is left for the caller
+            }
+            assertEquals(strategy.toString(), 1, image.fullEncodes);
+            assertEquals(strategy.toString(), leasedBefore, ByteBufferPool.getInstance().getLeasedCount());
+        }
+    }
+
+    @Test
+    public void failingEncoderReturnsEveryBufferToThePool() {
+        for (ImageCompressor.Strategy strategy : ImageCompressor.Strategy.values()) {
+            for (int failAt = 0; failAt <= 1; failAt++) { // Both strategies make two full encodes here
+                FakeEncoder image = new FakeEncoder(WIDTH, HEIGHT, 0.7);
+                image.failAfterFullEncodes = failAt;
+                ImageCompressor compressor = new ImageCompressor(TARGET_BYTES, MIN_QUALITY, strategy);
+                try {
+                    compressor.compress(image).release();
+                    fail(strategy + " compressed despite the encoder failing");
+                } catch (IOException expected) {
+                    assertFalse(expected instanceof InterruptedIOException);
+                }
+                assertEquals(strategy + " failing at encode " + failAt, leasedBefore, ByteBufferPool.getInstance().getLeasedCount());
+            }
+        }
+    }
+
+    @Test
+    public void releasedResultReturnsItsBuffer() throws IOException {
+        ImageCompressor compressor = new ImageCompressor(TARGET_BYTES, MIN_QUALITY, ImageCompressor.Strategy.BISECT);
+
+        ImageCompressor.Result result = compressor.compress(new FakeEncoder(WIDTH, HEIGHT, 1.0));
+        assertEquals(leasedBefore + 1, ByteBufferPool.getInstance().getLeasedCount());
+        result.release();
+        result.release(); // Safe to call twice
+        assertEquals(leasedBefore, ByteBufferPool.getInstance().getLeasedCount());
+    }
+
+    /**
+     * Writes as many bytes as a JPEG-like codec would: proportional to the pixels and growing
+     * exponentially with quality. Scaled copies, the probes, can write {@code probeBias} times
+     * that, to make the prediction miss.
+     */
+    private static class FakeEncoder implements ImageEncoder {
+        private final int width;
+        private final int height;
+        private final double probeBias;
+        private final boolean probe;
+        int fullEncodes;
+        int interruptAfterFullEncodes = -1;
+        int failAfterFullEncodes = -1; // Fails the next full encode once this many have succeeded
+
+        FakeEncoder(int width, int height, double probeBias) {
+            this(width, height, probeBias, false);
+        }
+
+        private FakeEncoder(int width, int height, double probeBias, boolean probe) {
+            this.width = width;
+            this.height = height;
+            this.probeBias = probeBias;
+            this.probe = probe;
+        }
+
+        static long sizeAt(int width, int height, int quality) {
+            return Math.round(width * (double) height * 0.05 * Math.exp(0.04 * quality));
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void encode(int quality, OutputStream output) throws IOException {
+            if (!probe && fullEncodes == failAfterFullEncodes) {
+                output.write(new byte[100]); // Part of an image, as a real codec would leave it
+                throw new IOException("Encoder failed at quality " + quality);
+            }
+            long size = Math.round(sizeAt(width, height, quality) * (probe ? probeBias : 1.0));
+            byte[] chunk = new byte[8192];
+            for (long written = 0; written < size; written += chunk.length) {
+                output.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+            if (!probe && ++fullEncodes == interruptAfterFullEncodes) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public ImageEncoder scaled(int scaledWidth, int scaledHeight) {
+            return new FakeEncoder(scaledWidth, scaledHeight, probeBias, true);
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
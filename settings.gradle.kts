@@ -21,3 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "Camera"
 include(":app")
+include(":core")
+include(":benchmark")